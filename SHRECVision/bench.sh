@@ -0,0 +1,13 @@
+#!/bin/bash
+#
+# This script runs the JMH benchmarks in ./bench with allocation profiling.
+# Set OCV_JAR_DIR, OCV_LIB_DIR and JMH_JAR_DIR to run it on a machine other
+# than the raspberry pi. JMH_JAR_DIR must hold jmh-core, jmh-generator-annprocess
+# and their dependencies (jopt-simple, commons-math3). Extra JMH arguments, such
+# as a benchmark name filter, can be passed in BENCH_ARGS.
+#
+ant -DocvJarDir=${OCV_JAR_DIR:-/home/pi/opencv/build/bin} \
+	-DocvLibDir=${OCV_LIB_DIR:-/home/pi/opencv/build/lib} \
+	-DjmhJarDir=${JMH_JAR_DIR:-/home/pi/jmh} \
+	"-Dbench.args=${BENCH_ARGS:-}" \
+	bench
@@ -0,0 +1,153 @@
+package jmh;
+
+import org.opencv.core.*;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+/**
+ * JMH refuses benchmarks in the default package, and classes in a named package
+ * cannot refer to the application classes, which all live in the default package.
+ * This class bridges the two with method handles held in static final fields,
+ * which the JIT compiler treats as constants and inlines like a direct call.
+ */
+final class Harness {
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+	private static final Class<?> VISION_STATE = load("UDPClient$VisionState");
+	private static final Class<?> VISION_STATS = load("VisionStats");
+	private static final Class<?> STATS_PIPELINE = load("VisionStats$Pipeline");
+	private static final Class<?> VISION_PREFS = load("VisionPrefs");
+	private static final Class<?> VISION_PIPELINE = load("VisionPipeline");
+	private static final Class<?> VISION_PACKET = load("VisionPacket");
+	private static final Class<?> SYNTHETIC_TARGET = load("SyntheticTarget");
+	private static final Class<?> COLOR_LUT = load("ColorLut");
+	private static final Class<?> TELEMETRY_PUBLISHER = load("TelemetryPublisher");
+	private static final Class<?> UDP_CLIENT = load("UDPClient");
+	private static final Class<?> VISION_SNAPSHOT = load("VisionSnapshot");
+
+	static final MethodHandle newPipeline = constructor(VISION_PIPELINE, VISION_STATE, STATS_PIPELINE)
+		.asType(MethodType.methodType(Object.class, Object.class, Object.class));
+	static final MethodHandle process = virtual(VISION_PIPELINE, "process", boolean.class, Mat.class, VISION_PREFS)
+		.asType(MethodType.methodType(boolean.class, Object.class, Mat.class, Object.class));
+	static final MethodHandle convert = virtual(VISION_PIPELINE, "convert", void.class, Mat.class)
+		.asType(MethodType.methodType(void.class, Object.class, Mat.class));
+	static final MethodHandle threshold = virtual(VISION_PIPELINE, "threshold", void.class, VISION_PREFS)
+		.asType(MethodType.methodType(void.class, Object.class, Object.class));
+	static final MethodHandle segment = virtual(VISION_PIPELINE, "segment", void.class, Mat.class, COLOR_LUT)
+		.asType(MethodType.methodType(void.class, Object.class, Mat.class, Object.class));
+	static final MethodHandle morphology = virtual(VISION_PIPELINE, "morphology", void.class)
+		.asType(MethodType.methodType(void.class, Object.class));
+	static final MethodHandle findContours = virtual(VISION_PIPELINE, "findContours", int.class)
+		.asType(MethodType.methodType(int.class, Object.class));
+	static final MethodHandle findComponents = virtual(VISION_PIPELINE, "findComponents", int.class)
+		.asType(MethodType.methodType(int.class, Object.class));
+	static final MethodHandle selectPair = virtual(VISION_PIPELINE, "selectPair", boolean.class, VISION_PREFS)
+		.asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+	static final MethodHandle select = virtual(VISION_PIPELINE, "select", boolean.class, VISION_PREFS)
+		.asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+	static final MethodHandle release = virtual(VISION_PIPELINE, "release", void.class)
+		.asType(MethodType.methodType(void.class, Object.class));
+
+	static final MethodHandle newPacket = constructor(VISION_PACKET)
+		.asType(MethodType.methodType(Object.class));
+	static final MethodHandle write = virtual(VISION_PACKET, "write", void.class, java.nio.ByteBuffer.class)
+		.asType(MethodType.methodType(void.class, Object.class, java.nio.ByteBuffer.class));
+	static final MethodHandle read = virtual(VISION_PACKET, "read", boolean.class, java.nio.ByteBuffer.class)
+		.asType(MethodType.methodType(boolean.class, Object.class, java.nio.ByteBuffer.class));
+
+	static final MethodHandle newPublisher = constructor(TELEMETRY_PUBLISHER)
+		.asType(MethodType.methodType(Object.class));
+	static final MethodHandle addSubscribers = virtual(TELEMETRY_PUBLISHER, "addAll", void.class, String.class)
+		.asType(MethodType.methodType(void.class, Object.class, String.class));
+	static final MethodHandle publish = virtual(TELEMETRY_PUBLISHER, "publish", void.class,
+		java.net.DatagramSocket.class, java.net.DatagramPacket.class)
+		.asType(MethodType.methodType(void.class, Object.class, java.net.DatagramSocket.class, java.net.DatagramPacket.class));
+
+	static final MethodHandle newClient = constructor(UDP_CLIENT, long.class)
+		.asType(MethodType.methodType(Object.class, long.class));
+	static final MethodHandle setTarget = virtual(UDP_CLIENT, "setTarget", void.class, double.class, double.class, double.class, long.class)
+		.asType(MethodType.methodType(void.class, Object.class, double.class, double.class, double.class, long.class));
+	static final MethodHandle getSnapshot = virtual(UDP_CLIENT, "getSnapshot", VISION_SNAPSHOT)
+		.asType(MethodType.methodType(Object.class, Object.class));
+
+	private Harness() {
+	}
+
+	/**
+	 * The vision state with the given name
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	static Object state(String name) {
+		return Enum.valueOf((Class<Enum>)VISION_STATE, name);
+	}
+
+	/**
+	 * A pipeline for the given target, recording its timings into a throwaway VisionStats
+	 */
+	static Object pipeline(String target) throws Throwable {
+		Object stats = constructor(VISION_STATS, long.class).invoke(0L);
+		Object timings = virtual(VISION_STATS, "pipeline", STATS_PIPELINE, String.class).invoke(stats, target);
+		return (Object)newPipeline.invokeExact(state(target), timings);
+	}
+
+	/**
+	 * Preferences parsed from the given lines
+	 */
+	static Object prefs(String... lines) throws Throwable {
+		return lookup.findStatic(VISION_PREFS, "parse", MethodType.methodType(VISION_PREFS, List.class))
+			.invoke(Arrays.asList(lines));
+	}
+
+	/**
+	 * A color table for the given preferences, see ColorLut.build()
+	 */
+	static Object colorLut(Object prefs, int bits) throws Throwable {
+		return lookup.findStatic(COLOR_LUT, "build", MethodType.methodType(COLOR_LUT, VISION_PREFS, int.class))
+			.invoke(prefs, bits);
+	}
+
+	/**
+	 * Draw a synthetic target, see SyntheticTarget.draw()
+	 */
+	static void draw(Mat frame, String target, double x, double y, double ppi, long seed) throws Throwable {
+		lookup.findStatic(SYNTHETIC_TARGET, "draw", MethodType.methodType(void.class, Mat.class, VISION_STATE,
+			double.class, double.class, double.class, long.class)).invoke(frame, state(target), x, y, ppi, seed);
+	}
+
+	/**
+	 * Set a public field of an application object
+	 */
+	static void set(Object target, String field, Object value) throws ReflectiveOperationException {
+		target.getClass().getField(field).set(target, value);
+	}
+
+	static int ordinal(String state) {
+		return ((Enum<?>)state(state)).ordinal();
+	}
+
+	private static Class<?> load(String name) {
+		try {
+			return Class.forName(name, false, Harness.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+		try {
+			return lookup.findConstructor(type, MethodType.methodType(void.class, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle virtual(Class<?> type, String name, Class<?> result, Class<?>... parameters) {
+		try {
+			return lookup.findVirtual(type, name, MethodType.methodType(result, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package jmh;
+
+import org.opencv.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the frame processing pipeline and each of its stages over a corpus of
+ * synthetic frames. The frames are drawn by SyntheticTarget from the tape geometry
+ * in SHRECVision at a range of positions and distances, scaled with the resolution
+ * so the target covers the same part of the image at every size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+	static { System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+	private static final int CORPUS_SIZE = 16;
+
+	@Param({"320x240", "640x480", "1280x960"})
+	public String resolution;
+
+	@Param({"Gear", "Boiler"})
+	public String target;
+
+	/**
+	 * The parallel_strips setting, only used by process()
+	 */
+	@Param({"1", "4"})
+	public int strips;
+
+	private final List<Mat> frames = new ArrayList<Mat>();
+	private Object pipeline;
+	private Object prefs;
+	private Object lut;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Throwable {
+		String[] size = resolution.split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		double scale = width / 320.0;
+
+		/**
+		 * Spread the target across the frame, between about 6 and 12 pixels per inch at 320x240
+		 */
+		Random random = new Random(5450);
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			Mat frame = new Mat(height, width, CvType.CV_8UC3);
+			double ppi = (6.0 + 6.0 * random.nextDouble()) * scale;
+			double x = width * (0.25 + 0.5 * random.nextDouble());
+			double y = height * (0.3 + 0.4 * random.nextDouble());
+			Harness.draw(frame, target, x, y, ppi, i);
+			frames.add(frame);
+		}
+
+		pipeline = Harness.pipeline(target);
+		/**
+		 * The default thresholds from prefs.txt, with the area limits scaled to the resolution.
+		 * Frames are searched whole, since consecutive corpus frames are unrelated.
+		 */
+		prefs = Harness.prefs("60", "0", "225", "200", "255", "255",
+			Double.toString(10.0 * scale * scale), Double.toString(50000.0 * scale * scale),
+			"roi_enabled=false", "parallel_strips=" + strips);
+
+		lut = Harness.colorLut(prefs, 8);
+
+		/**
+		 * Run every frame once so the per-stage benchmarks have valid inputs
+		 */
+		for (Mat frame : frames) {
+			if (!(boolean)Harness.process.invokeExact(pipeline, frame, prefs)) {
+				throw new IllegalStateException("Synthetic " + target + " target not found at " + resolution);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable {
+		for (Mat frame : frames) {
+			frame.release();
+		}
+		Harness.release.invokeExact(pipeline);
+	}
+
+	private Mat nextFrame() {
+		next = (next + 1) % frames.size();
+		return frames.get(next);
+	}
+
+	@Benchmark
+	public boolean process() throws Throwable {
+		return (boolean)Harness.process.invokeExact(pipeline, nextFrame(), prefs);
+	}
+
+	@Benchmark
+	public void convert() throws Throwable {
+		Harness.convert.invokeExact(pipeline, nextFrame());
+	}
+
+	@Benchmark
+	public void threshold() throws Throwable {
+		Harness.threshold.invokeExact(pipeline, prefs);
+	}
+
+	/**
+	 * The color table alternative to convert() and threshold() together
+	 */
+	@Benchmark
+	public void segment() throws Throwable {
+		Harness.segment.invokeExact(pipeline, nextFrame(), lut);
+	}
+
+	@Benchmark
+	public void morphology() throws Throwable {
+		/**
+		 * Opening an already opened mask does the same work as the first pass
+		 */
+		Harness.morphology.invokeExact(pipeline);
+	}
+
+	@Benchmark
+	public int findContours() throws Throwable {
+		return (int)Harness.findContours.invokeExact(pipeline);
+	}
+
+	@Benchmark
+	public boolean select() throws Throwable {
+		return (boolean)Harness.select.invokeExact(pipeline, prefs);
+	}
+
+	/**
+	 * The connected component alternatives to findContours() and select()
+	 */
+	@Benchmark
+	public int findComponents() throws Throwable {
+		return (int)Harness.findComponents.invokeExact(pipeline);
+	}
+
+	@Benchmark
+	public boolean selectPair() throws Throwable {
+		return (boolean)Harness.selectPair.invokeExact(pipeline, prefs);
+	}
+}
@@ -0,0 +1,86 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks publishing vision results from the frame thread while other threads
+ * read them, as the sender thread and robot code do. The snapshot group uses
+ * UDPClient's lock-free VisionSnapshot. The locked group is the synchronized
+ * setter and getters it replaced, for comparison; its readers take the monitor
+ * twice and can still see an angle and state from different updates.
+ *
+ * The difference only shows with a core per thread, run it on a multi-core machine.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	/**
+	 * The fields and monitor UDPClient used before VisionSnapshot
+	 */
+	static class Locked {
+		private double angle;
+		private double score;
+		private long timestamp;
+		private int state;
+
+		synchronized void setTarget(double a, double s, long t) {
+			angle = a;
+			score = s;
+			timestamp = t;
+		}
+
+		synchronized double getAngle() {
+			return angle;
+		}
+
+		synchronized int getState() {
+			return state;
+		}
+	}
+
+	private Object client;
+	private final Locked locked = new Locked();
+	private double angle = 0.0;
+
+	@Setup
+	public void setup() throws Throwable {
+		client = (Object)Harness.newClient.invokeExact(100L);
+	}
+
+	@Benchmark
+	@Group("snapshot")
+	@GroupThreads(1)
+	public void snapshotWrite() throws Throwable {
+		angle += 0.001;
+		Harness.setTarget.invokeExact(client, angle, 5.0, 0.9, System.nanoTime());
+	}
+
+	@Benchmark
+	@Group("snapshot")
+	@GroupThreads(3)
+	public Object snapshotRead() throws Throwable {
+		return (Object)Harness.getSnapshot.invokeExact(client);
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(1)
+	public void lockedWrite() {
+		angle += 0.001;
+		locked.setTarget(angle, 0.9, System.nanoTime());
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(3)
+	public double lockedRead() {
+		return locked.getAngle() + locked.getState();
+	}
+}
@@ -0,0 +1,87 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding and decoding the VisionPacket shared by UDPClient and UDPServer,
+ * and publishing one encoded packet to a number of loopback subscribers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryBenchmark {
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+	private Object out;
+	private Object in;
+
+	@Param({"1", "3"})
+	public int subscribers;
+
+	private Object publisher;
+	private DatagramSocket socket;
+	private DatagramSocket[] receivers;
+	private DatagramPacket datagram;
+
+	@Setup
+	public void setup() throws Throwable {
+		out = (Object)Harness.newPacket.invokeExact();
+		in = (Object)Harness.newPacket.invokeExact();
+		Harness.set(out, "state", Harness.ordinal("Gear"));
+		Harness.set(out, "flags", 1);
+		Harness.set(out, "sequence", 1L);
+		Harness.set(out, "timestamp", System.nanoTime());
+		Harness.set(out, "latency", 12000000L);
+		Harness.set(out, "angle", -4.25);
+		Harness.set(out, "score", 0.9);
+		Harness.set(out, "rate", 12.5);
+		Harness.write.invokeExact(out, buffer);
+
+		socket = new DatagramSocket();
+		publisher = (Object)Harness.newPublisher.invokeExact();
+		receivers = new DatagramSocket[subscribers];
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < subscribers; i++) {
+			receivers[i] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			list.append("127.0.0.1:").append(receivers[i].getLocalPort()).append(',');
+		}
+		Harness.addSubscribers.invokeExact(publisher, list.toString());
+		byte[] data = new byte[buffer.position()];
+		buffer.rewind();
+		buffer.get(data);
+		datagram = new DatagramPacket(data, data.length);
+	}
+
+	@TearDown
+	public void tearDown() {
+		socket.close();
+		for (DatagramSocket receiver : receivers) {
+			receiver.close();
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer encode() throws Throwable {
+		Harness.write.invokeExact(out, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public boolean decode() throws Throwable {
+		buffer.rewind();
+		return (boolean)Harness.read.invokeExact(in, buffer);
+	}
+
+	@Benchmark
+	public DatagramPacket publish() throws Throwable {
+		Harness.publish.invokeExact(publisher, socket, datagram);
+		return datagram;
+	}
+}
@@ -0,0 +1,521 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+import org.opencv.imgproc.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches for the HSV thresholds and area limits that detect the target best in a
+ * corpus of labelled frames, and writes them out as a preferences file. This
+ * replaces editing the first eight lines of prefs.txt by hand on the field.
+ *
+ * Usage: Calibrator <directory> [--target Gear|Boiler] [--prefs prefs.txt] [--out calibrated.txt]
+ *                   [--csv calibration.csv] [--tolerance 1.0] [--threads n] [--label]
+ *                   [--h_min lo:hi:step] ... [--max_area lo:hi:step]
+ *
+ * The directory holds the frames, such as a FlightRecorder dump, and a labels.csv
+ * with a line "file,found,angle" for each frame: whether the target is in it, and
+ * its angle in degrees. With --label, labels.csv is written from what the current
+ * preferences detect, to be corrected by hand before calibrating.
+ *
+ * A frame counts as a true positive when the target is found within --tolerance
+ * degrees of its label. Finding it at the wrong angle counts as both a false
+ * positive and a miss. The preferences with the best F1 score win.
+ *
+ * Each of h_min, s_min, v_min, h_max, s_max, v_max, min_area and max_area is searched
+ * over lo:hi:step, or held at a single value; by default the hue and the lower
+ * saturation, value and area bounds are searched around the current preferences.
+ * The frames are converted to HSV once and cached. The color combinations are
+ * spread over a fork-join pool, and each one thresholds, filters and measures
+ * every frame once with the pipeline's own stages, then tries every area
+ * combination on the same blobs. The winner is finally run through the full
+ * process() of a fresh pipeline to measure the time per frame, which is written
+ * to the CSV file with each frame's result.
+ *
+ * The search thresholds whole frames in HSV in a single pass, and the timing pass
+ * does the same whatever threshold_mode, parallel_strips and pyramid_scale say, so
+ * the results in the CSV file are those the winner was chosen on. threshold_mode=lut
+ * and parallel strips reproduce the same masks exactly; only their time differs.
+ */
+public class Calibrator {
+	static { System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+	private static final String[] axisNames = {"h_min", "s_min", "v_min", "h_max", "s_max", "v_max", "min_area", "max_area"};
+
+	/**
+	 * One labelled frame
+	 */
+	private static class Sample {
+		final String file;
+		final boolean found;
+		final double angle;
+		Mat hsv;
+
+		Sample(String file, boolean found, double angle) {
+			this.file = file;
+			this.found = found;
+			this.angle = angle;
+		}
+	}
+
+	/**
+	 * How a set of preferences did over the corpus
+	 */
+	private static class Score {
+		int truePositives;
+		int falsePositives;
+		int misses;
+		double angleError;
+		int[] min;
+		int[] max;
+		double minArea;
+		double maxArea;
+
+		double precision() {
+			return truePositives + falsePositives > 0 ? (double)truePositives / (truePositives + falsePositives) : 0.0;
+		}
+
+		double recall() {
+			return truePositives + misses > 0 ? (double)truePositives / (truePositives + misses) : 1.0;
+		}
+
+		double f1() {
+			double p = precision();
+			double r = recall();
+			return p + r > 0 ? 2 * p * r / (p + r) : 0.0;
+		}
+
+		double meanError() {
+			return truePositives > 0 ? angleError / truePositives : 0.0;
+		}
+
+		/**
+		 * Better F1, then fewer false positives, then smaller angle error
+		 */
+		boolean beats(Score other) {
+			if (other == null) {
+				return true;
+			}
+			if (f1() != other.f1()) {
+				return f1() > other.f1();
+			}
+			if (falsePositives != other.falsePositives) {
+				return falsePositives < other.falsePositives;
+			}
+			return meanError() < other.meanError();
+		}
+	}
+
+	private final List<Sample> samples;
+	private final UDPClient.VisionState target;
+	private final VisionPrefs base;
+	private final double tolerance;
+	private final int[][] colors;
+	private final double[][] areas;
+
+	/**
+	 * A pipeline for each worker thread, since a pipeline is not thread safe
+	 */
+	private final ThreadLocal<VisionPipeline> pipelines;
+
+	private Calibrator(List<Sample> samples, UDPClient.VisionState target, VisionPrefs base, double tolerance,
+			int[][] colors, double[][] areas) {
+		this.samples = samples;
+		this.target = target;
+		this.base = base;
+		this.tolerance = tolerance;
+		this.colors = colors;
+		this.areas = areas;
+		this.pipelines = ThreadLocal.withInitial(() -> new VisionPipeline(target, new VisionStats(0).pipeline(target.name())));
+	}
+
+	/**
+	 * Scores a range of the color combinations, splitting it until it is small
+	 */
+	private class Sweep extends RecursiveTask<Score> {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		Sweep(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Score compute() {
+			if (to - from <= 2) {
+				Score best = null;
+				for (int i = from; i < to; i++) {
+					Score score = evaluate(colors[i]);
+					if (score != null && score.beats(best)) {
+						best = score;
+					}
+				}
+				return best;
+			}
+			int middle = (from + to) >>> 1;
+			Sweep left = new Sweep(from, middle);
+			left.fork();
+			Score right = new Sweep(middle, to).compute();
+			Score other = left.join();
+			return other != null && other.beats(right) ? other : right;
+		}
+	}
+
+	/**
+	 * Score one color combination with every area combination, returning the best, or
+	 * null if the combination is not a valid range
+	 */
+	private Score evaluate(int[] color) {
+		int[] min = {color[0], color[1], color[2]};
+		int[] max = {color[3], color[4], color[5]};
+		VisionPrefs colorPrefs;
+		try {
+			colorPrefs = base.withThresholds(min, max, base.min_area, base.max_area);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+
+		VisionPrefs[] areaPrefs = new VisionPrefs[areas.length];
+		Score[] scores = new Score[areas.length];
+		for (int a = 0; a < areas.length; a++) {
+			if (areas[a][0] < 0.0 || areas[a][0] >= areas[a][1]) {
+				continue;
+			}
+			areaPrefs[a] = base.withThresholds(min, max, areas[a][0], areas[a][1]);
+			scores[a] = new Score();
+		}
+
+		VisionPipeline pipeline = pipelines.get();
+		VisionWorkspace ws = pipeline.getWorkspace();
+		boolean components = base.getString("detector", "components").equals("components");
+		for (Sample sample : samples) {
+			/**
+			 * Threshold, filter and measure once for this color range
+			 */
+			pipeline.setRegion(null);
+			sample.hsv.copyTo(ws.hsv);
+			pipeline.threshold(colorPrefs);
+			pipeline.morphology();
+			if (components) {
+				pipeline.findComponents();
+			} else {
+				pipeline.findContours();
+			}
+
+			/**
+			 * Then select with every area range from the same blobs
+			 */
+			for (int a = 0; a < areas.length; a++) {
+				if (areaPrefs[a] == null) {
+					continue;
+				}
+				boolean found = components ? pipeline.selectPair(areaPrefs[a]) : pipeline.select(areaPrefs[a]);
+				count(scores[a], sample, found, pipeline.getAngle());
+			}
+		}
+
+		Score best = null;
+		for (int a = 0; a < areas.length; a++) {
+			if (scores[a] != null && scores[a].beats(best)) {
+				best = scores[a];
+				best.min = min;
+				best.max = max;
+				best.minArea = areas[a][0];
+				best.maxArea = areas[a][1];
+			}
+		}
+		return best;
+	}
+
+	private void count(Score score, Sample sample, boolean found, double angle) {
+		if (found && sample.found && Math.abs(angle - sample.angle) <= tolerance) {
+			score.truePositives++;
+			score.angleError += Math.abs(angle - sample.angle);
+		} else {
+			if (found) {
+				score.falsePositives++;
+			}
+			if (sample.found) {
+				score.misses++;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: Calibrator <directory> [--target Gear|Boiler] [--prefs prefs.txt] [--out calibrated.txt] "
+				+ "[--csv calibration.csv] [--tolerance 1.0] [--threads n] [--label] [--h_min lo:hi:step] ...");
+			System.exit(2);
+		}
+
+		File directory = new File(args[0]);
+		UDPClient.VisionState target = UDPClient.VisionState.Gear;
+		String prefsFile = "prefs.txt";
+		String out = "calibrated.txt";
+		String csv = "calibration.csv";
+		double tolerance = 1.0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean label = false;
+		Map<String, String> ranges = new HashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--target")) {
+				target = UDPClient.VisionState.valueOf(args[++i]);
+			} else if (args[i].equals("--prefs")) {
+				prefsFile = args[++i];
+			} else if (args[i].equals("--out")) {
+				out = args[++i];
+			} else if (args[i].equals("--csv")) {
+				csv = args[++i];
+			} else if (args[i].equals("--tolerance")) {
+				tolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--label")) {
+				label = true;
+			} else if (args[i].startsWith("--") && Arrays.asList(axisNames).contains(args[i].substring(2))) {
+				ranges.put(args[i].substring(2), args[++i]);
+			} else {
+				System.out.println("Unknown argument " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		List<String> prefsLines = Files.readAllLines(Paths.get(prefsFile), StandardCharsets.UTF_8);
+		VisionPrefs prefs = VisionPrefs.parse(prefsLines);
+		File labels = new File(directory, "labels.csv");
+
+		if (label) {
+			writeLabels(directory, labels, target, prefs);
+			return;
+		}
+
+		/**
+		 * Load the corpus and cache every frame in HSV
+		 */
+		List<Sample> samples = readLabels(labels);
+		Mat frame = new Mat();
+		for (Sample sample : samples) {
+			Mat image = Imgcodecs.imread(new File(directory, sample.file).getPath(), Imgcodecs.IMREAD_COLOR);
+			if (image.empty()) {
+				throw new IOException("Cannot read " + sample.file);
+			}
+			sample.hsv = new Mat();
+			Imgproc.cvtColor(image, sample.hsv, Imgproc.COLOR_BGR2HSV);
+			image.release();
+		}
+		int positives = 0;
+		for (Sample sample : samples) {
+			if (sample.found) {
+				positives++;
+			}
+		}
+
+		/**
+		 * The values of each parameter to try
+		 */
+		double[] current = {prefs.getMin(0), prefs.getMin(1), prefs.getMin(2), prefs.getMax(0), prefs.getMax(1), prefs.getMax(2),
+			prefs.min_area, prefs.max_area};
+		String[] defaults = {
+			range(current[0] - 20, current[0] + 20, 5), range(current[1] - 60, current[1] + 60, 20),
+			range(current[2] - 60, current[2] + 60, 20), range(current[3] - 20, current[3] + 20, 5),
+			String.valueOf(current[4]), String.valueOf(current[5]),
+			current[6] / 4 + "," + current[6] / 2 + "," + current[6] + "," + current[6] * 2 + "," + current[6] * 4,
+			String.valueOf(current[7])};
+		double[][] values = new double[axisNames.length][];
+		for (int i = 0; i < axisNames.length; i++) {
+			values[i] = values(ranges.getOrDefault(axisNames[i], defaults[i]), i < 6);
+		}
+		int[][] colors = combinations(values, 0, 6);
+		double[][] areas = new double[values[6].length * values[7].length][];
+		for (int a = 0; a < values[6].length; a++) {
+			for (int b = 0; b < values[7].length; b++) {
+				areas[a * values[7].length + b] = new double[] {values[6][a], values[7][b]};
+			}
+		}
+		System.out.printf(Locale.ROOT, "%d frames, %d with a target; trying %d color ranges x %d area ranges on %d threads%n",
+			samples.size(), positives, colors.length, areas.length, threads);
+
+		/**
+		 * Search every combination in parallel
+		 */
+		Calibrator calibrator = new Calibrator(samples, target, prefs, tolerance, colors, areas);
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Score best = pool.invoke(calibrator.new Sweep(0, colors.length));
+		pool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (best == null) {
+			System.out.println("No valid combination to try");
+			System.exit(1);
+		}
+		VisionPrefs result = prefs.withThresholds(best.min, best.max, best.minArea, best.maxArea);
+		System.out.printf(Locale.ROOT, "Searched in %.1f s: HSV %s to %s, area %.1f to %.1f%n", seconds,
+			Arrays.toString(best.min), Arrays.toString(best.max), best.minArea, best.maxArea);
+		System.out.printf(Locale.ROOT, "precision %.3f, recall %.3f, F1 %.3f, mean angle error %.3f degrees%n",
+			best.precision(), best.recall(), best.f1(), best.meanError());
+
+		/**
+		 * Time the winner frame by frame through the real pipeline. The frames are not a
+		 * sequence, so each is searched whole, as when the labels were written, and
+		 * thresholded as in the search.
+		 */
+		VisionPrefs timed = result.with("roi_enabled", "false").with("threshold_mode", "hsv").with("parallel_strips", "1")
+			.with("pyramid_scale", "1");
+		VisionPipeline pipeline = new VisionPipeline(target, new VisionStats(0).pipeline(target.name()));
+		long[] times = new long[samples.size()];
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(csv), StandardCharsets.UTF_8))) {
+			writer.println("file,label_found,label_angle,found,angle,time_ms");
+			for (int i = 0; i < samples.size(); i++) {
+				Sample sample = samples.get(i);
+				Mat image = Imgcodecs.imread(new File(directory, sample.file).getPath(), Imgcodecs.IMREAD_COLOR);
+				if (image.empty()) {
+					throw new IOException("Cannot read " + sample.file);
+				}
+				image.copyTo(frame);
+				image.release();
+				long before = System.nanoTime();
+				boolean found = pipeline.process(frame, timed);
+				times[i] = System.nanoTime() - before;
+				writer.printf(Locale.ROOT, "%s,%b,%.4f,%b,%.4f,%.3f%n", sample.file, sample.found, sample.angle, found,
+					found ? pipeline.getAngle() : 0.0, times[i] / 1e6);
+			}
+		}
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		double mean = Arrays.stream(times).average().orElse(0.0) / 1e6;
+		double p99 = sorted.length > 0 ? sorted[Math.min(sorted.length - 1, (int)(sorted.length * 0.99))] / 1e6 : 0.0;
+		System.out.printf(Locale.ROOT, "process() took %.3f ms per frame, p99 %.3f ms; results written to %s%n", mean, p99, csv);
+
+		/**
+		 * Write the preferences file with the winning values in place of the positional ones
+		 */
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format(Locale.ROOT, "# Calibrated on %s (%d frames): precision %.3f, recall %.3f, F1 %.3f, %.3f ms per frame",
+			directory, samples.size(), best.precision(), best.recall(), best.f1(), mean));
+		double[] chosen = {best.min[0], best.min[1], best.min[2], best.max[0], best.max[1], best.max[2], best.minArea, best.maxArea};
+		int position = 0;
+		for (String line : prefsLines) {
+			String trimmed = line.trim();
+			if (position < 8 && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+				lines.add(position < 6 ? String.valueOf((int)chosen[position]) : String.valueOf(chosen[position]));
+				position++;
+			} else {
+				lines.add(line);
+			}
+		}
+		Files.write(Paths.get(out), lines, StandardCharsets.UTF_8);
+		System.out.println("Preferences written to " + out);
+
+		pipeline.release();
+		frame.release();
+		for (Sample sample : samples) {
+			sample.hsv.release();
+		}
+	}
+
+	/**
+	 * Write labels.csv from what the given preferences detect in each frame
+	 */
+	private static void writeLabels(File directory, File labels, UDPClient.VisionState target, VisionPrefs prefs) throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.matches("(?i).*\\.(png|jpe?g|bmp)") && !name.contains("-mask"));
+		if (files == null || files.length == 0) {
+			throw new IOException("No frames in " + directory);
+		}
+		Arrays.sort(files);
+		VisionPipeline pipeline = new VisionPipeline(target, new VisionStats(0).pipeline(target.name()));
+		VisionPrefs whole = prefs.with("roi_enabled", "false");
+		Mat frame = new Mat();
+		int count = 0;
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(labels.toPath(), StandardCharsets.UTF_8))) {
+			writer.println("file,found,angle");
+			for (File file : files) {
+				Mat image = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_COLOR);
+				if (image.empty()) {
+					continue;
+				}
+				image.copyTo(frame);
+				image.release();
+				boolean found = pipeline.process(frame, whole);
+				writer.printf(Locale.ROOT, "%s,%b,%s%n", file.getName(), found, found ? String.format(Locale.ROOT, "%.4f", pipeline.getAngle()) : "");
+				count++;
+			}
+		}
+		pipeline.release();
+		frame.release();
+		System.out.println("Labelled " + count + " frames in " + labels + ", check them before calibrating");
+	}
+
+	private static List<Sample> readLabels(File labels) throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		for (String line : Files.readAllLines(labels.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#") || line.startsWith("file,")) {
+				continue;
+			}
+			String[] fields = line.split(",", -1);
+			boolean found = Boolean.parseBoolean(fields[1].trim());
+			double angle = found && fields.length > 2 && !fields[2].trim().isEmpty() ? Double.parseDouble(fields[2].trim()) : 0.0;
+			samples.add(new Sample(fields[0].trim(), found, angle));
+		}
+		if (samples.isEmpty()) {
+			throw new IOException("No labelled frames in " + labels);
+		}
+		return samples;
+	}
+
+	private static String range(double lo, double hi, double step) {
+		return Math.max(0, lo) + ":" + Math.min(255, hi) + ":" + step;
+	}
+
+	/**
+	 * The values of a lo:hi:step range, a comma separated list or a single value,
+	 * rounded to whole numbers for the HSV bounds
+	 */
+	private static double[] values(String spec, boolean integer) {
+		List<Double> list = new ArrayList<Double>();
+		if (spec.contains(":")) {
+			String[] parts = spec.split(":");
+			double lo = Double.parseDouble(parts[0]);
+			double hi = Double.parseDouble(parts[1]);
+			double step = parts.length > 2 ? Double.parseDouble(parts[2]) : 1.0;
+			for (double v = lo; v <= hi + 1e-9; v += step) {
+				list.add(v);
+			}
+		} else {
+			for (String part : spec.split(",")) {
+				list.add(Double.parseDouble(part.trim()));
+			}
+		}
+		double[] result = new double[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = integer ? Math.round(list.get(i)) : list.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Every combination of the values of the given parameters
+	 */
+	private static int[][] combinations(double[][] values, int from, int to) {
+		int total = 1;
+		for (int i = from; i < to; i++) {
+			total *= values[i].length;
+		}
+		int[][] result = new int[total][to - from];
+		for (int n = 0; n < total; n++) {
+			int rest = n;
+			for (int i = to - 1; i >= from; i--) {
+				result[n][i - from] = (int)values[i][rest % values[i].length];
+				rest /= values[i].length;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,152 @@
+import org.opencv.core.*;
+
+/**
+ * Owns one camera stream. Frames are read continuously on this thread and posted
+ * to a FrameMailbox, so a slow or failed camera never stalls the processing loop
+ * or the other camera.
+ *
+ * While the camera is inactive, frames are only grabbed, not decoded. This keeps
+ * the stream connected and its buffer drained without the cost of JPEG decoding,
+ * and the first frame read after the camera is made active again is a fresh one.
+ *
+ * When the stream fails it is reopened on this thread, with backoff between attempts,
+ * and its health is reported to the Supervisor.
+ */
+public class CaptureThread implements Runnable {
+
+	private final String name;
+	private final FrameSource source;
+	private final FrameMailbox mailbox = new FrameMailbox();
+	private final VisionStats.Pipeline stats;
+	private final Supervisor.Resource health;
+	private volatile boolean running = true;
+	private volatile boolean active = true;
+
+	public CaptureThread(String name, FrameSource source, VisionStats stats, Supervisor.Resource health) {
+		this.name = name;
+		this.source = source;
+		this.stats = stats.pipeline(name);
+		this.health = health;
+	}
+
+	/**
+	 * Take the newest frame from this camera, see FrameMailbox.take()
+	 */
+	public FrameMailbox.Frame take(long timeoutMsec) throws InterruptedException {
+		return mailbox.take(timeoutMsec);
+	}
+
+	public FrameMailbox getMailbox() {
+		return mailbox;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Decode frames for processing, or only grab them while no one is using this camera.
+	 * On activation any frame left from before is discarded, so take() waits for a new one.
+	 */
+	public void setActive(boolean a) {
+		if (a && !active) {
+			mailbox.clear();
+		}
+		active = a;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Ask the capture loop to finish and release the camera
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	public Supervisor.Resource getHealth() {
+		return health;
+	}
+
+	@Override
+	public void run() {
+		if (!open()) {
+			health.failed("cannot open stream");
+		}
+
+		while (running) {
+			try {
+				step();
+			} catch (RuntimeException e) {
+				/**
+				 * A failure the source did not expect, such as an OpenCV error. Reopen
+				 * the stream as after any other failure instead of losing the camera.
+				 */
+				e.printStackTrace();
+				health.failed(e.toString());
+				source.release();
+			}
+		}
+
+		source.release();
+	}
+
+	/**
+	 * Read, grab or reopen the stream once
+	 */
+	private void step() {
+		/**
+		 * Check the state of the video stream
+		 */
+		if (!source.isOpened()) {
+			source.release();
+			if (!health.backoff()) {
+				running = false;
+				return;
+			}
+			if (!open()) {
+				health.failed("cannot open stream");
+			}
+			return;
+		}
+
+		/**
+		 * Keep an inactive stream moving without decoding it
+		 */
+		if (!active) {
+			if (source.grab()) {
+				health.healthy();
+			} else {
+				health.failed("grab failed");
+				source.release();
+			}
+			return;
+		}
+
+		/**
+		 * Obtain a video frame and hand it to the processing loop. The wait for the
+		 * frame is the camera's frame spacing, so only its decode is timed.
+		 */
+		if (source.read(mailbox.backBuffer())) {
+			stats.record(VisionStats.Stage.Capture, source.getDecodeTime());
+			if (mailbox.publish(source.getCaptureTime())) {
+				stats.count(VisionStats.Event.Dropped);
+			}
+			health.healthy();
+		} else {
+			health.failed("read failed");
+			source.release();
+		}
+	}
+
+	private boolean open() {
+		try {
+			return source.open();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A lookup table from BGR color straight to the thresholded mask, so a frame can be
+ * segmented in one pass instead of converting it to HSV and then thresholding it.
+ *
+ * The table holds one bit per color, with each channel quantized to lut_bits bits.
+ * At 8 bits the table is exact: it is built by running every color through the same
+ * cvtColor and inRange calls as the HSV pipeline, so both produce identical masks.
+ * Fewer bits give a smaller table that fits in cache, at the cost of deciding each
+ * cell of similar colors by its center color.
+ *
+ * Tables depend only on the color thresholds, so pipelines with the same thresholds
+ * share one, and cameras with thresholds of their own each have theirs. A table for
+ * new thresholds is built on a background thread, and get() returns null until it
+ * is ready so callers fall back to the HSV pipeline.
+ */
+public final class ColorLut {
+
+	/**
+	 * The most tables kept: one for each camera, and a few more while thresholds are tuned
+	 */
+	private static final int maxTables = 4;
+
+	/**
+	 * The tables built, newest first. Replaced as a whole, so readers need no lock.
+	 */
+	private static volatile ColorLut[] tables = new ColorLut[0];
+	private static final AtomicBoolean building = new AtomicBoolean(false);
+
+	private final int bits;
+	private final int[] key;
+	private final int[] table;
+
+	/**
+	 * The preferences this table was last found to match, so that get() only compares
+	 * the thresholds again after the preferences are reloaded
+	 */
+	private volatile VisionPrefs matched;
+
+	private ColorLut(int bits, int[] key) {
+		this.bits = bits;
+		this.key = key;
+		this.table = new int[Math.max(1, (1 << (3 * bits)) >>> 5)];
+	}
+
+	/**
+	 * The table for the thresholds in the given preferences, or null while it is being built
+	 */
+	public static ColorLut get(VisionPrefs p) {
+		ColorLut[] built = tables;
+		for (int i = 0; i < built.length; i++) {
+			if (built[i].matched == p) {
+				return built[i];
+			}
+		}
+		int bits = Math.max(4, Math.min(8, p.getInt("lut_bits", 8)));
+		for (int i = 0; i < built.length; i++) {
+			if (built[i].matches(p, bits)) {
+				built[i].matched = p;
+				return built[i];
+			}
+		}
+		int[] key = keyOf(p, bits);
+
+		if (building.compareAndSet(false, true)) {
+			Thread thread = new Thread(() -> {
+				try {
+					long start = System.nanoTime();
+					add(build(p, bits, key));
+					System.out.printf(Locale.ROOT, "Built %d bit color table in %.1f ms%n", bits, (System.nanoTime() - start) / 1e6);
+				} catch (Throwable e) {
+					e.printStackTrace();
+				} finally {
+					building.set(false);
+				}
+			}, "Color table");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+		return null;
+	}
+
+	/**
+	 * Keep a new table in front of the others, forgetting the oldest beyond maxTables.
+	 * Only called by the one thread building at a time.
+	 */
+	private static void add(ColorLut lut) {
+		ColorLut[] built = tables;
+		ColorLut[] next = new ColorLut[Math.min(maxTables, built.length + 1)];
+		next[0] = lut;
+		System.arraycopy(built, 0, next, 1, next.length - 1);
+		tables = next;
+	}
+
+	/**
+	 * Build a table on the calling thread, blocking until it is done
+	 */
+	public static ColorLut build(VisionPrefs p, int bits) {
+		return build(p, bits, keyOf(p, bits));
+	}
+
+	private static int[] keyOf(VisionPrefs p, int bits) {
+		return new int[] {bits, p.getMin(0), p.getMin(1), p.getMin(2), p.getMax(0), p.getMax(1), p.getMax(2)};
+	}
+
+	/**
+	 * Whether this table was built for the thresholds in the given preferences, compared
+	 * with its key in place
+	 */
+	private boolean matches(VisionPrefs p, int b) {
+		if (key[0] != b) {
+			return false;
+		}
+		for (int c = 0; c < 3; c++) {
+			if (key[1 + c] != p.getMin(c) || key[4 + c] != p.getMax(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Run every quantized color through cvtColor and inRange, one blue level at a time
+	 */
+	private static ColorLut build(VisionPrefs p, int bits, int[] key) {
+		ColorLut lut = new ColorLut(bits, key);
+		int levels = 1 << bits;
+		int shift = 8 - bits;
+		int center = shift > 0 ? 1 << (shift - 1) : 0;
+
+		Mat bgr = new Mat(levels, levels, CvType.CV_8UC3);
+		Mat hsv = new Mat();
+		Mat mask = new Mat();
+		byte[] colors = new byte[levels * levels * 3];
+		byte[] result = new byte[levels * levels];
+		try {
+			for (int b = 0; b < levels; b++) {
+				for (int g = 0, i = 0; g < levels; g++) {
+					for (int r = 0; r < levels; r++) {
+						colors[i++] = (byte)((b << shift) | center);
+						colors[i++] = (byte)((g << shift) | center);
+						colors[i++] = (byte)((r << shift) | center);
+					}
+				}
+				bgr.put(0, 0, colors);
+				Imgproc.cvtColor(bgr, hsv, Imgproc.COLOR_BGR2HSV);
+				Core.inRange(hsv, p.thd_color_low, p.thd_color_high, mask);
+				mask.get(0, 0, result);
+
+				int base = b << (2 * bits);
+				for (int i = 0; i < result.length; i++) {
+					if (result[i] != 0) {
+						int index = base | i;
+						lut.table[index >>> 5] |= 1 << (index & 31);
+					}
+				}
+			}
+		} finally {
+			bgr.release();
+			hsv.release();
+			mask.release();
+		}
+		return lut;
+	}
+
+	/**
+	 * Threshold a BGR image into a mask of the same size. The arrays are scratch
+	 * space for the pixels of the image and of the mask, and must be large enough.
+	 */
+	public void apply(Mat image, Mat mask, byte[] pixels, byte[] out) {
+		int count = image.rows() * image.cols();
+		image.get(0, 0, pixels);
+
+		/**
+		 * Shifting the color's bit up to the sign and back spreads it over the whole byte.
+		 * The exact table gets its own loop, since constant shifts run about twice as fast.
+		 */
+		int[] t = table;
+		if (bits == 8) {
+			for (int i = 0, j = 0; i < count; i++, j += 3) {
+				int index = ((pixels[j] & 0xff) << 16) | ((pixels[j + 1] & 0xff) << 8) | (pixels[j + 2] & 0xff);
+				out[i] = (byte)((t[index >>> 5] << (31 - (index & 31))) >> 31);
+			}
+		} else {
+			int shift = 8 - bits;
+			for (int i = 0, j = 0; i < count; i++, j += 3) {
+				int index = (((pixels[j] & 0xff) >>> shift) << (2 * bits))
+					| (((pixels[j + 1] & 0xff) >>> shift) << bits)
+					| ((pixels[j + 2] & 0xff) >>> shift);
+				out[i] = (byte)((t[index >>> 5] << (31 - (index & 31))) >> 31);
+			}
+		}
+
+		mask.put(0, 0, out);
+	}
+
+	public int getBits() {
+		return bits;
+	}
+}
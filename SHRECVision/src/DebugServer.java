@@ -0,0 +1,58 @@
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * A small HTTP server for looking into the running pipeline from a laptop.
+ * It runs on its own threads and only does work when someone asks.
+ *
+ *   /stats      the per-stage latency table since the last periodic summary
+ *   /telemetry  the packets sent to each telemetry subscriber
+ *   /health     the health of each camera and socket, and their recovery times
+ *   /stream/<camera>  live annotated frames and masks of a camera, see DebugStream
+ */
+public class DebugServer {
+
+	private final HttpServer server;
+
+	public DebugServer(int port, VisionStats stats) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "Debug server");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.createContext("/stats", exchange -> sendText(exchange, stats.summary()));
+	}
+
+	/**
+	 * Serve a handler under a path
+	 */
+	public void addContext(String path, HttpHandler handler) {
+		server.createContext(path, handler);
+	}
+
+	public void start() {
+		server.start();
+		System.out.println("Debug server listening on port " + server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Reply with a plain text body
+	 */
+	public static void sendText(HttpExchange exchange, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+import com.sun.net.httpserver.*;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+import org.opencv.imgproc.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Live MJPEG streams of what one camera's pipeline sees, served by the DebugServer:
+ *
+ *   /stream/<camera>       the camera frame with the blobs found, the selected pair and the angle drawn on
+ *   /stream/<camera>/mask  the thresholded and filtered mask
+ *
+ * Open them in a browser on the driver station while tuning. The frame thread only
+ * copies a frame, at most debug_stream_fps times a second, and hands it to an
+ * encoder thread that draws on it and JPEG-encodes it once. Every viewer of a
+ * stream is sent the same encoded bytes. A stream nobody is watching is not copied
+ * or encoded, and with no viewers at all offer() returns after one read.
+ *
+ * Each camera has its own stream, and only that camera's frame thread may call offer().
+ */
+public class DebugStream {
+
+	/**
+	 * The most blobs drawn on the frame
+	 */
+	private static final int maxBoxes = 32;
+
+	private static final String boundary = "frame";
+
+	private static final Scalar blobColor = new Scalar(0, 200, 255);
+	private static final Scalar pairColor = new Scalar(0, 255, 0);
+	private static final Scalar regionColor = new Scalar(255, 128, 0);
+	private static final Scalar textColor = new Scalar(255, 255, 255);
+
+	/**
+	 * One stream: its viewers and its latest encoded frame
+	 */
+	private static class Channel implements HttpHandler {
+		final AtomicInteger viewers = new AtomicInteger();
+		final Mat image = new Mat();
+		final MatOfByte encoded = new MatOfByte();
+		boolean wanted;
+		private byte[] jpeg = null;
+		private long sequence = 0;
+
+		synchronized void publish(byte[] bytes) {
+			jpeg = bytes;
+			sequence++;
+			notifyAll();
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			viewers.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + boundary);
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			exchange.sendResponseHeaders(200, 0);
+			long sent = 0;
+			try (OutputStream out = exchange.getResponseBody()) {
+				while (true) {
+					byte[] bytes;
+					synchronized (this) {
+						while (sequence == sent) {
+							wait(1000);
+						}
+						bytes = jpeg;
+						sent = sequence;
+					}
+					out.write(("--" + boundary + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII));
+					out.write(bytes);
+					out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+				}
+			} catch (IOException e) {
+				/**
+				 * The viewer went away
+				 */
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				viewers.decrementAndGet();
+			}
+		}
+	}
+
+	private final String camera;
+	private final Channel frames = new Channel();
+	private final Channel masks = new Channel();
+
+	/**
+	 * Claimed by the frame thread before it writes a frame, and cleared by the encoder
+	 * when done with it. Ready is set only once the whole frame has been written.
+	 */
+	private final AtomicBoolean busy = new AtomicBoolean(false);
+	private final AtomicBoolean ready = new AtomicBoolean(false);
+	private final Thread encoder;
+	private long nextOffer = 0;
+	private final MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 70);
+
+	/**
+	 * What to draw on the handed over frame
+	 */
+	private int boxes = 0;
+	private final int[] boxLeft = new int[maxBoxes];
+	private final int[] boxTop = new int[maxBoxes];
+	private final int[] boxRight = new int[maxBoxes];
+	private final int[] boxBottom = new int[maxBoxes];
+	private final Rect[] pair = {new Rect(), new Rect()};
+	private final Rect region = new Rect();
+	private boolean hasRegion = false;
+	private boolean found = false;
+	private double angle = 0.0;
+	private double score = 0.0;
+	private int contours = 0;
+	private String target = "";
+
+	public DebugStream(String camera) {
+		this.camera = camera;
+		encoder = new Thread(this::encode, camera + " debug stream");
+		encoder.setDaemon(true);
+		encoder.setPriority(Thread.MIN_PRIORITY);
+		encoder.start();
+	}
+
+	/**
+	 * Serve the streams from a debug server
+	 */
+	public void register(DebugServer server) {
+		server.addContext("/stream/" + camera + "/mask", masks);
+		server.addContext("/stream/" + camera, frames);
+	}
+
+	/**
+	 * Offer the frame just processed by a pipeline. Called by the frame thread after
+	 * every frame; does nothing unless someone is watching and the rate allows a frame.
+	 */
+	public void offer(Mat frame, VisionPipeline pipeline, boolean targetFound, VisionPrefs p) {
+		boolean wantFrames = frames.viewers.get() > 0;
+		boolean wantMasks = masks.viewers.get() > 0;
+		if (!wantFrames && !wantMasks) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (now - nextOffer < 0 || !busy.compareAndSet(false, true)) {
+			return;
+		}
+		nextOffer = now + (long)(1e9 / Math.max(0.1, p.getDouble("debug_stream_fps", 10.0)));
+
+		frames.wanted = wantFrames;
+		masks.wanted = wantMasks;
+		if (wantFrames) {
+			frame.copyTo(frames.image);
+		}
+		if (wantMasks) {
+			pipeline.getMask().copyTo(masks.image);
+		}
+
+		VisionWorkspace ws = pipeline.getWorkspace();
+		boxes = Math.min(ws.getCount(), maxBoxes);
+		for (int i = 0; i < boxes; i++) {
+			boxLeft[i] = ws.getLeft(i);
+			boxTop[i] = ws.getTop(i);
+			boxRight[i] = ws.getRight(i);
+			boxBottom[i] = ws.getBottom(i);
+		}
+		found = targetFound;
+		if (found) {
+			for (int k = 0; k < 2; k++) {
+				int i = k == 0 ? pipeline.getIndex1() : pipeline.getIndex2();
+				pair[k].x = ws.getLeft(i);
+				pair[k].y = ws.getTop(i);
+				pair[k].width = ws.getWidth(i);
+				pair[k].height = ws.getHeight(i);
+			}
+		}
+		Rect window = ws.getRegion();
+		hasRegion = window != null;
+		if (hasRegion) {
+			region.x = window.x;
+			region.y = window.y;
+			region.width = window.width;
+			region.height = window.height;
+		}
+		angle = pipeline.getAngle();
+		score = pipeline.getScore();
+		contours = pipeline.getContourCount();
+		target = pipeline.getTarget().name();
+		params.fromArray(Imgcodecs.IMWRITE_JPEG_QUALITY, p.getInt("debug_stream_quality", 70));
+
+		ready.set(true);
+		LockSupport.unpark(encoder);
+	}
+
+	/**
+	 * The encoder thread: draw on and encode each handed over frame. A frame that fails
+	 * to encode is skipped, and the next one is taken as usual.
+	 */
+	private void encode() {
+		while (true) {
+			while (!ready.get()) {
+				LockSupport.park(this);
+			}
+			ready.set(false);
+
+			try {
+				if (frames.wanted) {
+					annotate(frames.image);
+					frames.publish(encode(frames));
+				}
+				if (masks.wanted) {
+					masks.publish(encode(masks));
+				}
+			} catch (RuntimeException e) {
+				System.out.println("Error encoding the " + camera + " debug stream: " + e.getMessage());
+			} finally {
+				busy.set(false);
+			}
+		}
+	}
+
+	private byte[] encode(Channel channel) {
+		Imgcodecs.imencode(".jpg", channel.image, channel.encoded, params);
+		return channel.encoded.toArray();
+	}
+
+	private void annotate(Mat image) {
+		for (int i = 0; i < boxes; i++) {
+			Imgproc.rectangle(image, new Point(boxLeft[i], boxTop[i]), new Point(boxRight[i] - 1, boxBottom[i] - 1), blobColor, 1);
+		}
+		if (hasRegion) {
+			Imgproc.rectangle(image, region, regionColor, 1);
+		}
+		if (found) {
+			/**
+			 * The selected pair, and a line through the point the angle is measured to
+			 */
+			for (Rect r : pair) {
+				Imgproc.rectangle(image, r, pairColor, 2);
+			}
+			double x = (pair[0].x + pair[0].width / 2.0 + pair[1].x + pair[1].width / 2.0) / 2.0;
+			Imgproc.line(image, new Point(x, 0), new Point(x, image.rows() - 1), pairColor, 1);
+		}
+		String text = found ?
+			String.format(Locale.ROOT, "%s %.2f deg score %.2f blobs %d", target, angle, score, contours) :
+			String.format(Locale.ROOT, "%s no target, blobs %d", target, contours);
+		Imgproc.putText(image, text, new Point(4, 14), Imgproc.FONT_HERSHEY_SIMPLEX, 0.4, textColor, 1);
+	}
+
+	public int getViewers() {
+		return frames.viewers.get() + masks.viewers.get();
+	}
+}
@@ -0,0 +1,221 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps the last few seconds of raw frames and masks in memory, and writes them
+ * to disk only when something asks for it. Samples are copied into preallocated
+ * slots of a ring buffer, so recording never blocks the frame thread: a sample
+ * that arrives while another thread holds the buffer is dropped, and counted.
+ *
+ * A dump takes the samples out of the ring and puts empty slots in their place,
+ * whose buffers are allocated by the first sample copied into each, then writes
+ * them out without holding the buffer, so recording carries on while the files
+ * are written. Until they are, the samples taken and those recorded since can
+ * hold up to twice recorder_max_mb.
+ *
+ * Samples are kept as raw Mats rather than compressed, since encoding on the
+ * frame thread is exactly the cost this class exists to avoid.
+ *
+ * Each camera has its own recorder, named in the directory of its recordings.
+ * The buffer is sized for the camera's frames; if their size changes, the samples
+ * held are discarded and the buffer is sized again.
+ */
+public class FlightRecorder implements Runnable {
+
+	/**
+	 * A single recorded frame and the mask produced from it
+	 */
+	private static class Sample {
+		final Mat raw = new Mat();
+		final Mat mask = new Mat();
+		long time;
+	}
+
+	private final String directory;
+	private final String camera;
+	private final double seconds;
+	private final long samplePeriod;
+	private final long maxBytes;
+
+	/**
+	 * The ring buffer, sized from the first frame that is recorded
+	 */
+	private Sample[] samples;
+	private long sampleBytes = 0;
+	private int head = 0;
+	private int count = 0;
+	private long lastSample = 0;
+
+	/**
+	 * Owned by whichever thread is currently touching the ring buffer
+	 */
+	private final AtomicBoolean busy = new AtomicBoolean(false);
+
+	/**
+	 * Pending dump requests, at most one is queued at a time
+	 */
+	private final BlockingQueue<String> triggers = new ArrayBlockingQueue<String>(1);
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Record up to the given number of seconds at the given rate, bounded by a memory cap in bytes
+	 */
+	public FlightRecorder(String directory, String camera, double seconds, double sampleHz, long maxBytes) {
+		this.directory = directory;
+		this.camera = camera;
+		this.seconds = seconds;
+		this.samplePeriod = sampleHz > 0.0 ? (long)(1000000000.0 / sampleHz) : Long.MAX_VALUE;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Create a recorder for a camera from the recorder_* preferences
+	 */
+	public static FlightRecorder fromPrefs(VisionPrefs p, String camera) {
+		return new FlightRecorder(
+			p.getString("recorder_directory", "/home/pi/Desktop/recordings"), camera,
+			p.getDouble("recorder_seconds", 10.0),
+			p.getDouble("recorder_sample_hz", 5.0),
+			(long)(p.getDouble("recorder_max_mb", 32.0) * 1024 * 1024));
+	}
+
+	/**
+	 * Copy a frame and its mask into the ring buffer if a sample is due. Never blocks.
+	 */
+	public void record(Mat raw, Mat mask) {
+		long now = System.nanoTime();
+		if (now - lastSample < samplePeriod) {
+			return;
+		}
+		if (!busy.compareAndSet(false, true)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		try {
+			if (samples == null || raw.total() * raw.elemSize() + mask.total() * mask.elemSize() != sampleBytes) {
+				allocate(raw, mask);
+			}
+			if (samples.length == 0) {
+				return;
+			}
+			Sample sample = samples[head];
+			raw.copyTo(sample.raw);
+			mask.copyTo(sample.mask);
+			sample.time = System.currentTimeMillis();
+			head = (head + 1) % samples.length;
+			count = Math.min(count + 1, samples.length);
+			lastSample = now;
+			recorded.incrementAndGet();
+		} finally {
+			busy.set(false);
+		}
+	}
+
+	/**
+	 * Size the ring buffer from the seconds requested and the memory cap
+	 */
+	private void allocate(Mat raw, Mat mask) {
+		long bytes = raw.total() * raw.elemSize() + mask.total() * mask.elemSize();
+		if (samples != null) {
+			for (Sample sample : samples) {
+				sample.raw.release();
+				sample.mask.release();
+			}
+		}
+		sampleBytes = bytes;
+		head = 0;
+		count = 0;
+		long wanted = samplePeriod == Long.MAX_VALUE ? 0 : (long)Math.ceil(seconds * 1000000000.0 / samplePeriod);
+		int capacity = (int)Math.max(0, Math.min(wanted, bytes > 0 ? maxBytes / bytes : 0));
+		samples = new Sample[capacity];
+		for (int i = 0; i < capacity; i++) {
+			samples[i] = new Sample();
+		}
+		System.out.println(camera + " flight recorder holding " + capacity + " samples of " + bytes + " bytes");
+	}
+
+	/**
+	 * Ask the background thread to write the buffer to disk
+	 */
+	public void trigger(String reason) {
+		if (triggers.offer(reason)) {
+			System.out.println("Flight recorder triggered: " + reason);
+		}
+	}
+
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Write every buffered sample to a new directory, oldest first, on the calling thread
+	 */
+	public void dump(String reason) {
+		/**
+		 * Take the samples out of the ring, oldest first, leaving it empty
+		 */
+		Sample[] taken;
+		while (!busy.compareAndSet(false, true)) {
+			Thread.yield();
+		}
+		try {
+			if (samples == null || count == 0) {
+				return;
+			}
+			taken = new Sample[count];
+			int start = (head - count + samples.length) % samples.length;
+			for (int i = 0; i < count; i++) {
+				int slot = (start + i) % samples.length;
+				taken[i] = samples[slot];
+				samples[slot] = new Sample();
+			}
+			count = 0;
+		} finally {
+			busy.set(false);
+		}
+
+		try {
+			String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			File dir = new File(directory, stamp + "-" + (camera + "-" + reason).replaceAll("[^A-Za-z0-9_-]", "_"));
+			if (!dir.mkdirs()) {
+				System.out.println("Error creating recording directory " + dir);
+				return;
+			}
+			for (int i = 0; i < taken.length; i++) {
+				String name = String.format("%03d-%d", i, taken[i].time);
+				Imgcodecs.imwrite(new File(dir, name + "-raw.png").getPath(), taken[i].raw);
+				Imgcodecs.imwrite(new File(dir, name + "-mask.png").getPath(), taken[i].mask);
+			}
+			System.out.println("Flight recorder wrote " + taken.length + " samples to " + dir
+				+ (dropped.get() > 0 ? ", " + dropped.get() + " dropped so far" : ""));
+		} finally {
+			for (Sample sample : taken) {
+				sample.raw.release();
+				sample.mask.release();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				dump(triggers.take());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
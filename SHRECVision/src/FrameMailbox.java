@@ -0,0 +1,93 @@
+import org.opencv.core.*;
+
+/**
+ * A single-slot mailbox that always holds the newest frame from one camera.
+ *
+ * The producer decodes into its own back buffer and publishes it by swapping
+ * it with the ready slot. The consumer takes the ready slot by swapping it
+ * with the buffer it has finished with. Only buffer references change hands
+ * under the lock, so neither side waits on the other's frame work, and a frame
+ * that is not taken before the next one is published is dropped, not queued.
+ */
+public class FrameMailbox {
+
+	/**
+	 * A frame buffer and the sequence number and capture time of its contents
+	 */
+	public static class Frame {
+		public final Mat mat = new Mat();
+		public long sequence;
+		public long timestamp;
+	}
+
+	/**
+	 * Written only by the producer
+	 */
+	private Frame back = new Frame();
+
+	/**
+	 * The newest published frame
+	 */
+	private Frame ready = new Frame();
+
+	/**
+	 * Held by the consumer until its next take
+	 */
+	private Frame front = new Frame();
+
+	private long published = 0;
+	private long taken = 0;
+
+	/**
+	 * The buffer the producer should decode the next frame into
+	 */
+	public Mat backBuffer() {
+		return back.mat;
+	}
+
+	/**
+	 * Publish the back buffer as the newest frame, captured at the given System.nanoTime().
+	 * Returns true if it replaced a frame that was never taken.
+	 */
+	public synchronized boolean publish(long timestamp) {
+		boolean dropped = ready.sequence > taken;
+		Frame swap = ready;
+		ready = back;
+		back = swap;
+		ready.sequence = ++published;
+		ready.timestamp = timestamp;
+		notifyAll();
+		return dropped;
+	}
+
+	/**
+	 * Take the newest frame not yet taken, waiting up to the given time for one.
+	 * The returned frame stays valid until the next call. Returns null on timeout.
+	 */
+	public synchronized Frame take(long timeoutMsec) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		while (ready.sequence <= taken) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return null;
+			}
+			wait(remaining);
+		}
+		Frame swap = front;
+		front = ready;
+		ready = swap;
+		taken = front.sequence;
+		return front;
+	}
+
+	/**
+	 * Forget the frame waiting to be taken, so the next take() waits for a new one
+	 */
+	public synchronized void clear() {
+		taken = published;
+	}
+
+	public synchronized long getPublished() {
+		return published;
+	}
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the processing loop at a target frame rate for each vision state, instead
+ * of processing every frame the cameras deliver as fast as possible.
+ *
+ * Time is divided into slots of one frame period. The loop waits for the start of
+ * the next slot, processes the newest frame, and should be done by the end of the
+ * slot, its deadline. A frame that is already older than frame_max_age_msec when
+ * its slot starts is skipped instead of processed late, and a frame finished after
+ * its deadline is counted as a miss. When the loop falls behind by more than a
+ * slot, the schedule restarts from now instead of running slots back to back to
+ * catch up, so a slow frame never causes a burst of work after it.
+ *
+ * Target rates are read from target_fps_Boiler, target_fps_Gear and target_fps_Idle.
+ * The Idle rate is how often the loop checks for a new vision state.
+ */
+public class FrameScheduler {
+
+	private UDPClient.VisionState state = null;
+	private long slotStart = 0;
+	private long period = 0;
+
+	/**
+	 * The slot length of each state and the oldest frame worth processing, in
+	 * nanoseconds, read from the preferences they were last computed for
+	 */
+	private VisionPrefs prefs = null;
+	private final long[] periods = new long[UDPClient.VisionState.values().length];
+	private long maxAge = 0;
+
+	/**
+	 * Wait for the start of the next slot for the given state, and return its deadline
+	 */
+	public long await(UDPClient.VisionState s, VisionPrefs p) {
+		period = periodOf(s, p);
+		long now = System.nanoTime();
+
+		if (s != state) {
+			/**
+			 * Start a new schedule right away when the state changes
+			 */
+			state = s;
+			slotStart = now;
+		} else {
+			slotStart += period;
+			if (now - slotStart > period) {
+				slotStart = now;
+			}
+			while (slotStart - now > 0) {
+				LockSupport.parkNanos(this, slotStart - now);
+				now = System.nanoTime();
+			}
+		}
+		return slotStart + period;
+	}
+
+	/**
+	 * Whether a frame captured at the given System.nanoTime() is too old to be worth processing
+	 */
+	public boolean isStale(long timestamp, VisionPrefs p) {
+		if (p != prefs) {
+			load(p);
+		}
+		return System.nanoTime() - timestamp > maxAge;
+	}
+
+	/**
+	 * Whether a frame finishing now has missed the given deadline
+	 */
+	public boolean isLate(long deadline) {
+		return System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * The length of a slot at the current rate, in nanoseconds
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	private long periodOf(UDPClient.VisionState s, VisionPrefs p) {
+		if (p != prefs) {
+			load(p);
+		}
+		return periods[s.ordinal()];
+	}
+
+	/**
+	 * Compute the rates once per preferences instance, instead of looking up and
+	 * parsing them every frame. A reload always makes a new instance.
+	 */
+	private void load(VisionPrefs p) {
+		for (UDPClient.VisionState s : UDPClient.VisionState.values()) {
+			periods[s.ordinal()] = (long)(1e9 / Math.max(0.1, p.getDouble("target_fps_" + s.name(), defaultRate(s))));
+		}
+		maxAge = p.getInt("frame_max_age_msec", 100) * 1000000L;
+		prefs = p;
+	}
+
+	private static double defaultRate(UDPClient.VisionState s) {
+		return s == UDPClient.VisionState.Idle ? 50.0 : 15.0;
+	}
+}
@@ -0,0 +1,73 @@
+import org.opencv.core.*;
+
+import java.io.File;
+
+/**
+ * Where frames come from. A source is opened, read from one frame at a time by a
+ * single thread, and released. Sources that run out of frames, such as a video
+ * file, return false from read() once they are exhausted.
+ */
+public interface FrameSource {
+
+	/**
+	 * Open the source, returning false if it is not available
+	 */
+	boolean open();
+
+	boolean isOpened();
+
+	/**
+	 * Read the next frame into the given Mat, returning false at the end of the
+	 * source or on an error
+	 */
+	boolean read(Mat frame);
+
+	/**
+	 * Move past the next frame without decoding it, keeping a live stream connected
+	 * and its buffer drained. Returns false at the end of the source or on an error.
+	 */
+	boolean grab();
+
+	/**
+	 * The time of the frame last read, in nanoseconds since the first frame. Used to
+	 * replay recorded frames at their original rate.
+	 */
+	long getFrameTime();
+
+	/**
+	 * The time taken to decode the frame last read, in nanoseconds, not counting the
+	 * wait for it to arrive
+	 */
+	long getDecodeTime();
+
+	/**
+	 * The System.nanoTime() at which the frame last read began to arrive, before it
+	 * was received in full and decoded. Frames are stamped with it, so their age
+	 * includes the transfer and the decode.
+	 */
+	long getCaptureTime();
+
+	void release();
+
+	String getName();
+
+	/**
+	 * Create a source from a description:
+	 *   synthetic:Gear or synthetic:Boiler  a generated target sweeping across the frame
+	 *   a directory                         the images in it, in name order
+	 *   mjpeg:<url>                         an MJPEG stream over HTTP, read by MjpegSource
+	 *   anything else                       a video file or stream URL for VideoCapture
+	 */
+	static FrameSource parse(String spec) {
+		if (spec.startsWith("synthetic:")) {
+			return new SyntheticSource(UDPClient.VisionState.valueOf(spec.substring("synthetic:".length())),
+				(int)SHRECVision.camera_width, (int)SHRECVision.camera_height, 300, 15.0);
+		} else if (spec.startsWith("mjpeg:")) {
+			return new MjpegSource(spec.substring("mjpeg:".length()), 1);
+		} else if (new File(spec).isDirectory()) {
+			return new ImageDirectorySource(new File(spec), 15.0);
+		} else {
+			return new VideoCaptureSource(spec);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Frames from the image files in a directory, in name order. Directories written
+ * by the FlightRecorder are replayed with their recorded timing and without their
+ * masks; any other images are spaced evenly at a fixed rate.
+ */
+public class ImageDirectorySource implements FrameSource {
+
+	/**
+	 * The names the FlightRecorder gives its samples: index, capture time in milliseconds
+	 */
+	private static final Pattern recorded = Pattern.compile("\\d+-(\\d+)-raw\\.\\w+");
+
+	private final File directory;
+	private final long framePeriod;
+	private File[] files = new File[0];
+	private int next = 0;
+	private long first = -1;
+	private long frameTime = 0;
+	private long decodeTime = 0;
+	private long captureTime = 0;
+
+	public ImageDirectorySource(File directory, double fps) {
+		this.directory = directory;
+		this.framePeriod = (long)(1000000000.0 / fps);
+	}
+
+	@Override
+	public boolean open() {
+		File[] found = directory.listFiles((dir, name) -> name.matches("(?i).*\\.(png|jpe?g|bmp)") && !name.contains("-mask"));
+		if (found == null) {
+			return false;
+		}
+		Arrays.sort(found);
+		files = found;
+		next = 0;
+		first = -1;
+		return files.length > 0;
+	}
+
+	@Override
+	public boolean isOpened() {
+		return files.length > 0;
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		decodeTime = 0;
+		while (next < files.length) {
+			File file = files[next];
+			long before = System.nanoTime();
+			Mat image = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_COLOR);
+			if (image.empty()) {
+				System.out.println("Skipping unreadable image " + file);
+				decodeTime += System.nanoTime() - before;
+				next++;
+				continue;
+			}
+			image.copyTo(frame);
+			image.release();
+			decodeTime += System.nanoTime() - before;
+			captureTime = before;
+			advance();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean grab() {
+		if (next >= files.length) {
+			return false;
+		}
+		advance();
+		return true;
+	}
+
+	/**
+	 * Move on from the current file, taking its time from its name if the flight recorder wrote it
+	 */
+	private void advance() {
+		Matcher m = recorded.matcher(files[next].getName());
+		if (m.matches()) {
+			long time = Long.parseLong(m.group(1));
+			if (first < 0) {
+				first = time;
+			}
+			frameTime = (time - first) * 1000000L;
+		} else {
+			frameTime = next * framePeriod;
+		}
+		next++;
+	}
+
+	@Override
+	public long getFrameTime() {
+		return frameTime;
+	}
+
+	@Override
+	public long getDecodeTime() {
+		return decodeTime;
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void release() {
+		files = new File[0];
+	}
+
+	@Override
+	public String getName() {
+		return directory.getPath();
+	}
+}
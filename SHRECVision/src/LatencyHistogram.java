@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * A lock-free histogram of durations. Values are recorded in microseconds into
+ * log-linear buckets, eight per power of two, so percentiles are accurate to
+ * about 12% from 1 microsecond up to more than an hour. Recording is a single
+ * atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = 256;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	private static int index(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int)micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - 3;
+		int index = (shift + 1) * SUB_BUCKETS + (int)(micros >> shift) - SUB_BUCKETS;
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	/**
+	 * The highest value, in microseconds, that falls in a bucket
+	 */
+	private static long upperBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * The largest recorded duration in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * The duration in nanoseconds at or below which the given fraction of values fall.
+	 * Values recorded while this runs may or may not be counted.
+	 */
+	public long getPercentile(double fraction) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i) * 1000, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clear the histogram. Values recorded concurrently may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		max.set(0);
+	}
+}
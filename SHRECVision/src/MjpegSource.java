@@ -0,0 +1,538 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Frames from an MJPEG stream over HTTP, such as the Axis IP cameras serve, read
+ * directly from a socket instead of through VideoCapture.
+ *
+ * The multipart stream is parsed in one reused buffer, headers included, without
+ * making strings of it. Each read() takes in every byte that has arrived, and only
+ * the newest complete JPEG is decoded; older ones are counted and skipped. No frames
+ * are queued, so a frame is never older than the time it took to arrive.
+ *
+ * Frames can be decoded at half or a quarter of their size, which costs much less
+ * than decoding in full. The area preferences are in pixels of the decoded frame.
+ *
+ * The stream is requested over HTTP/1.0, with Basic authentication if the URL has
+ * a user. Cameras that insist on Digest authentication refuse it.
+ *
+ * Each frame is stamped with the time its first bytes were read from the socket,
+ * so its age includes the rest of its transfer and its decode.
+ */
+public class MjpegSource implements FrameSource {
+
+	/**
+	 * How long to wait for the next frame before giving up on the stream
+	 */
+	private static final int TIMEOUT_MSEC = 2000;
+
+	/**
+	 * The most the receive buffer may grow to hold a single frame
+	 */
+	private static final int MAX_BUFFER = 8 << 20;
+
+	private final String url;
+	private final int flags;
+
+	private SocketChannel channel;
+	private Selector selector;
+	private ByteBuffer buffer = ByteBuffer.allocate(256 << 10);
+	private byte[] boundary;
+	private boolean headersDone;
+
+	/**
+	 * The newest complete JPEG not yet read, with room after it for an end of image
+	 * marker. The JPEG is decoded from the start of the encoded Mat, which is never
+	 * shrunk, and the marker makes the decoder stop before what is left of older ones.
+	 */
+	private byte[] latest = new byte[64 << 10];
+	private int latestLength = 0;
+	private boolean pending = false;
+	private final Mat encoded = new Mat();
+
+	/**
+	 * When the first bytes in the buffer were read, when those of the newest complete
+	 * JPEG were, and when those of the JPEG last read or grabbed were
+	 */
+	private long partTime = 0;
+	private long latestTime = 0;
+	private long captureTime = 0;
+
+	private long start = 0;
+	private long frameTime = 0;
+	private long decodeTime = 0;
+
+	/**
+	 * Counters, written only by the reading thread
+	 */
+	private volatile long bytes = 0;
+	private volatile long frames = 0;
+	private volatile long skipped = 0;
+	private volatile long decoded = 0;
+
+	/**
+	 * Read the stream at the given URL, decoding frames at 1/reduction of their size,
+	 * where reduction is 1, 2, 4 or 8
+	 */
+	public MjpegSource(String url, int reduction) {
+		this.url = url;
+		if (reduction >= 8) {
+			flags = Imgcodecs.IMREAD_REDUCED_COLOR_8;
+		} else if (reduction >= 4) {
+			flags = Imgcodecs.IMREAD_REDUCED_COLOR_4;
+		} else if (reduction >= 2) {
+			flags = Imgcodecs.IMREAD_REDUCED_COLOR_2;
+		} else {
+			flags = Imgcodecs.IMREAD_COLOR;
+		}
+	}
+
+	@Override
+	public boolean open() {
+		release();
+		try {
+			URI uri = new URI(url);
+			int port = uri.getPort() > 0 ? uri.getPort() : 80;
+			String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+			if (uri.getRawQuery() != null) {
+				path += "?" + uri.getRawQuery();
+			}
+
+			channel = SocketChannel.open();
+			channel.socket().connect(new InetSocketAddress(uri.getHost(), port), TIMEOUT_MSEC);
+			channel.socket().setTcpNoDelay(true);
+
+			StringBuilder request = new StringBuilder();
+			request.append("GET ").append(path).append(" HTTP/1.0\r\n");
+			request.append("Host: ").append(uri.getHost()).append("\r\n");
+			if (uri.getUserInfo() != null) {
+				request.append("Authorization: Basic ")
+					.append(Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(StandardCharsets.UTF_8))).append("\r\n");
+			}
+			request.append("\r\n");
+			ByteBuffer out = ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.US_ASCII));
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException | URISyntaxException e) {
+			System.out.println("Error opening " + getName() + ": " + e.getMessage());
+			release();
+			return false;
+		}
+
+		buffer.clear();
+		boundary = null;
+		headersDone = false;
+		pending = false;
+		start = 0;
+		return true;
+	}
+
+	@Override
+	public boolean isOpened() {
+		return channel != null && channel.isOpen();
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		decodeTime = 0;
+		while (true) {
+			if (!next()) {
+				return false;
+			}
+
+			/**
+			 * The Java binding has no imdecode into a given Mat, so the decoded image
+			 * is copied into the frame and released at once
+			 */
+			long before = System.nanoTime();
+			latest[latestLength] = (byte)0xFF;
+			latest[latestLength + 1] = (byte)0xD9;
+			encoded.put(0, 0, latest, 0, latestLength + 2);
+			Mat image = Imgcodecs.imdecode(encoded, flags);
+			if (image.empty()) {
+				/**
+				 * A corrupt frame, wait for the next one
+				 */
+				image.release();
+				decodeTime += System.nanoTime() - before;
+				continue;
+			}
+			image.copyTo(frame);
+			image.release();
+			decodeTime += System.nanoTime() - before;
+			decoded++;
+			return true;
+		}
+	}
+
+	@Override
+	public boolean grab() {
+		return next();
+	}
+
+	/**
+	 * Wait until at least one complete JPEG has arrived since the last call, and keep
+	 * the newest of them. Returns false if the stream ends, fails or stalls.
+	 */
+	private boolean next() {
+		if (!isOpened()) {
+			return false;
+		}
+		try {
+			while (true) {
+				int count = receive();
+				if (count < 0) {
+					System.out.println("End of stream " + getName());
+					return false;
+				}
+				if (pending) {
+					break;
+				}
+				if (selector.select(TIMEOUT_MSEC) == 0) {
+					System.out.println("Timed out reading " + getName());
+					return false;
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			System.out.println("Error reading " + getName() + ": " + e.getMessage());
+			return false;
+		}
+
+		pending = false;
+		captureTime = latestTime;
+		long now = System.nanoTime();
+		if (start == 0) {
+			start = now;
+		}
+		frameTime = now - start;
+		encoded.create(1, Math.max(encoded.cols(), latest.length), CvType.CV_8UC1);
+		return true;
+	}
+
+	/**
+	 * Read everything available without blocking and parse it. Returns the number of
+	 * bytes read, or -1 at the end of the stream.
+	 */
+	private int receive() throws IOException {
+		int total = 0;
+		while (true) {
+			if (!buffer.hasRemaining()) {
+				if (buffer.capacity() >= MAX_BUFFER) {
+					throw new IOException("No frame found in " + MAX_BUFFER + " bytes");
+				}
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			boolean empty = buffer.position() == 0;
+			long now = System.nanoTime();
+			int count = channel.read(buffer);
+			if (count < 0) {
+				return total > 0 ? total : -1;
+			}
+			if (count == 0) {
+				break;
+			}
+			if (empty) {
+				partTime = now;
+			}
+			total += count;
+			bytes += count;
+			parse(now);
+		}
+		return total;
+	}
+
+	/**
+	 * Take every complete part out of the buffer, keeping the newest JPEG. Any bytes
+	 * left after the first part taken were read at the given time.
+	 */
+	private void parse(long now) throws IOException {
+		byte[] data = buffer.array();
+		int limit = buffer.position();
+		int position = 0;
+
+		if (!headersDone) {
+			int end = indexOf(data, 0, limit, CRLFCRLF);
+			if (end < 0) {
+				return;
+			}
+			int statusEnd = lineEnd(data, 0, end);
+			int space = indexOf(data, 0, statusEnd, SPACE);
+			if (!matches(data, 0, statusEnd, HTTP) || space < 0 || !matches(data, space + 1, statusEnd, OK)
+					|| (space + 4 < statusEnd && data[space + 4] != ' ')) {
+				throw new IOException("Unexpected response " + new String(data, 0, statusEnd, StandardCharsets.ISO_8859_1));
+			}
+			boundary = boundary(data, end);
+			headersDone = true;
+			position = end + 4;
+			partTime = now;
+		}
+
+		while (true) {
+			/**
+			 * A part is the boundary line, its headers, a blank line and the JPEG
+			 */
+			int mark = indexOf(data, position, limit, boundary);
+			if (mark < 0) {
+				break;
+			}
+			int headersEnd = indexOf(data, mark, limit, CRLFCRLF);
+			if (headersEnd < 0) {
+				break;
+			}
+			int body = headersEnd + 4;
+			int length = header(data, mark, headersEnd, CONTENT_LENGTH);
+
+			int end;
+			if (length >= 0) {
+				end = body + contentLength(data, length, lineEnd(data, length, headersEnd));
+				if (end > limit) {
+					break;
+				}
+			} else {
+				/**
+				 * Without a length, the JPEG ends where the next boundary starts
+				 */
+				end = indexOf(data, body, limit, boundary);
+				if (end < 0) {
+					break;
+				}
+				while (end > body && (data[end - 1] == '-' || data[end - 1] == '\r' || data[end - 1] == '\n')) {
+					end--;
+				}
+			}
+
+			int size = end - body;
+			if (latest.length < size + 2) {
+				latest = new byte[size + size / 2 + 2];
+			}
+			System.arraycopy(data, body, latest, 0, size);
+			latestLength = size;
+			latestTime = partTime;
+			partTime = now;
+			frames++;
+			if (pending) {
+				skipped++;
+			}
+			pending = true;
+			position = end;
+		}
+
+		/**
+		 * Keep only the bytes of the incomplete part
+		 */
+		if (position > 0) {
+			System.arraycopy(data, position, data, 0, limit - position);
+			buffer.position(limit - position);
+		}
+	}
+
+	/**
+	 * The size of a part from the value of its Content-Length header, between the
+	 * given indices. A length that is not a number, is negative or could never fit in
+	 * the buffer fails the stream like any other read error, so it is reopened.
+	 */
+	private static int contentLength(byte[] data, int from, int to) throws IOException {
+		while (to > from && data[to - 1] == ' ') {
+			to--;
+		}
+		long length = 0;
+		for (int i = from; i < to; i++) {
+			if (data[i] < '0' || data[i] > '9' || length > MAX_BUFFER) {
+				throw new IOException("Invalid Content-Length " + new String(data, from, to - from, StandardCharsets.ISO_8859_1));
+			}
+			length = length * 10 + (data[i] - '0');
+		}
+		if (from == to || length > MAX_BUFFER) {
+			throw new IOException("Invalid Content-Length " + new String(data, from, to - from, StandardCharsets.ISO_8859_1));
+		}
+		return (int)length;
+	}
+
+	/**
+	 * The multipart boundary from the Content-Type header of the response headers, which
+	 * end at the given index, without the quotes and dashes around it
+	 */
+	private static byte[] boundary(byte[] data, int end) throws IOException {
+		int type = header(data, 0, end, CONTENT_TYPE);
+		int typeEnd = type >= 0 ? lineEnd(data, type, end) : 0;
+		int at = -1;
+		for (int i = type; type >= 0 && i <= typeEnd - BOUNDARY.length; i++) {
+			if (matches(data, i, typeEnd, BOUNDARY)) {
+				at = i + BOUNDARY.length;
+				break;
+			}
+		}
+		if (at < 0) {
+			throw new IOException("Not a multipart stream: "
+				+ (type >= 0 ? new String(data, type, typeEnd - type, StandardCharsets.ISO_8859_1) : null));
+		}
+		int to = typeEnd;
+		for (int i = at; i < typeEnd; i++) {
+			if (data[i] == ';') {
+				to = i;
+				break;
+			}
+		}
+		while (at < to && (data[at] == ' ' || data[at] == '"' || data[at] == '-')) {
+			at++;
+		}
+		while (to > at && (data[to - 1] == ' ' || data[to - 1] == '"')) {
+			to--;
+		}
+		return Arrays.copyOfRange(data, at, to);
+	}
+
+	private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+	private static final byte[] SPACE = {' '};
+	private static final byte[] HTTP = "http/1.".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OK = "200".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT_TYPE = "content-type".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] BOUNDARY = "boundary=".getBytes(StandardCharsets.US_ASCII);
+
+	private static int indexOf(byte[] data, int from, int limit, byte[] pattern) {
+		outer:
+		for (int i = from; i <= limit - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether the bytes from the given index, up to the limit, start with the given
+	 * lower case ASCII, ignoring case
+	 */
+	private static boolean matches(byte[] data, int from, int limit, byte[] lower) {
+		if (from < 0 || limit - from < lower.length) {
+			return false;
+		}
+		for (int i = 0; i < lower.length; i++) {
+			byte b = data[from + i];
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != lower[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The index of the end of the line starting at the given index, or the limit
+	 */
+	private static int lineEnd(byte[] data, int from, int limit) {
+		for (int i = from; i < limit - 1; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * The index of the value of a header, after its colon and any spaces, in the block
+	 * of headers between the given indices, or -1. The name is in lower case.
+	 */
+	private static int header(byte[] data, int from, int to, byte[] name) {
+		for (int line = from; line < to; ) {
+			int end = lineEnd(data, line, to);
+			int colon = line + name.length;
+			while (colon < end && data[colon] == ' ') {
+				colon++;
+			}
+			if (matches(data, line, end, name) && colon < end && data[colon] == ':') {
+				int value = colon + 1;
+				while (value < end && data[value] == ' ') {
+					value++;
+				}
+				return value;
+			}
+			line = end + 2;
+		}
+		return -1;
+	}
+
+	@Override
+	public long getFrameTime() {
+		return frameTime;
+	}
+
+	@Override
+	public long getDecodeTime() {
+		return decodeTime;
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void release() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		selector = null;
+		channel = null;
+	}
+
+	@Override
+	public String getName() {
+		return url.replaceAll("//[^@/]*@", "//");
+	}
+
+	/**
+	 * The number of bytes received from the stream
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * The number of complete JPEGs received, decoded or not
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * The number of complete JPEGs dropped because a newer one had arrived
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public long getDecoded() {
+		return decoded;
+	}
+}
@@ -0,0 +1,151 @@
+import com.sun.net.httpserver.*;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for an Axis IP camera, serving frames as an MJPEG stream over HTTP the
+ * way the cameras do, so the stream readers can be tried without a camera. The
+ * frames come from any source FrameSource.parse() accepts, such as a recorded
+ * video or a flight recorder dump, and repeat when the source runs out.
+ *
+ * Usage: MjpegStandIn <source> [--port 8090] [--fps 30] [--quality 80] [--no-length]
+ *                     [--fail-every n] [--down-msec m]
+ *
+ * Each client gets its own copy of the source from the start. --no-length leaves the
+ * Content-Length header out of each part, as some cameras do, so the reader has to
+ * find the end of each JPEG by the next boundary. For example, in one terminal
+ * MjpegStandIn synthetic:Gear, and in another Replay mjpeg:http://localhost:8090/ --frames 300.
+ *
+ * To test reconnection, --fail-every drops each connection after that many frames,
+ * and --down-msec then answers 503 Service Unavailable to every request for that
+ * long, like a camera that is rebooting. The client's recovery time is the time from
+ * the drop to its next frame, which the Supervisor reports.
+ */
+public class MjpegStandIn {
+	static { System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+	private static final String boundary = "myboundary";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: MjpegStandIn <source> [--port 8090] [--fps 30] [--quality 80] [--no-length] [--fail-every n] [--down-msec m]");
+			System.exit(2);
+		}
+
+		String spec = args[0];
+		int port = 8090;
+		double fps = 30.0;
+		int quality = 80;
+		boolean length = true;
+		int failEvery = 0;
+		long downMsec = 0;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--fps")) {
+				fps = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--quality")) {
+				quality = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--no-length")) {
+				length = false;
+			} else if (args[i].equals("--fail-every")) {
+				failEvery = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--down-msec")) {
+				downMsec = Long.parseLong(args[++i]);
+			} else {
+				System.out.println("Unknown argument " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		serve(spec, port, fps, quality, length, failEvery, downMsec);
+		System.out.println("Serving " + spec + " on port " + port);
+	}
+
+	/**
+	 * Start serving a source on a port, or on any free port if it is 0, with the
+	 * options described above. Stop the returned server to stop serving.
+	 */
+	public static HttpServer serve(String spec, int port, double fps, int quality, boolean sendLength,
+			int framesPerConnection, long downMsec) throws IOException {
+		final long period = (long)(1e9 / fps);
+		final MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+		final long downNanos = downMsec * 1000000L;
+		final AtomicLong downUntil = new AtomicLong(System.nanoTime());
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			if (downUntil.get() - System.nanoTime() > 0) {
+				exchange.sendResponseHeaders(503, -1);
+				exchange.close();
+				return;
+			}
+			FrameSource source = FrameSource.parse(spec);
+			Mat frame = new Mat();
+			MatOfByte jpeg = new MatOfByte();
+			exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + boundary);
+			exchange.sendResponseHeaders(200, 0);
+			System.out.println("Streaming " + source.getName() + " to " + exchange.getRemoteAddress());
+
+			try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16)) {
+				long next = System.nanoTime();
+				int sent = 0;
+				while (framesPerConnection <= 0 || sent < framesPerConnection) {
+					if (!source.isOpened() || !source.read(frame)) {
+						/**
+						 * Start the source over when it runs out
+						 */
+						if (!source.open() || !source.read(frame)) {
+							break;
+						}
+					}
+					Imgcodecs.imencode(".jpg", frame, jpeg, params);
+					byte[] body = jpeg.toArray();
+
+					StringBuilder part = new StringBuilder();
+					part.append("--").append(boundary).append("\r\n");
+					part.append("Content-Type: image/jpeg\r\n");
+					if (sendLength) {
+						part.append("Content-Length: ").append(body.length).append("\r\n");
+					}
+					part.append("\r\n");
+					out.write(part.toString().getBytes(StandardCharsets.US_ASCII));
+					out.write(body);
+					out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+					sent++;
+
+					next += period;
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					} else {
+						next = System.nanoTime();
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Client " + exchange.getRemoteAddress() + " disconnected");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (framesPerConnection > 0) {
+					downUntil.set(System.nanoTime() + downNanos);
+					System.out.println("Dropped " + exchange.getRemoteAddress());
+				}
+				exchange.close();
+				source.release();
+				frame.release();
+				jpeg.release();
+			}
+		});
+		server.start();
+		return server;
+	}
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Loads the preferences file once, then watches its directory and republishes
+ * a new VisionPrefs snapshot whenever the file changes. Readers only ever
+ * read the current snapshot reference, so no file I/O happens on the frame thread.
+ */
+public class PrefsWatcher implements Runnable {
+
+	/**
+	 * Time to let an editor finish writing before the file is parsed
+	 */
+	private static final long SETTLE_MSEC = 50;
+
+	private final Path path;
+	private final AtomicReference<VisionPrefs> current = new AtomicReference<VisionPrefs>(VisionPrefs.DEFAULT);
+
+	/**
+	 * Called with each snapshot published, for settings that are not read per frame
+	 */
+	private Consumer<VisionPrefs> reloadListener;
+
+	public PrefsWatcher(String file) {
+		path = Paths.get(file).toAbsolutePath();
+		reload();
+	}
+
+	/**
+	 * The most recently loaded preferences
+	 */
+	public VisionPrefs get() {
+		return current.get();
+	}
+
+	/**
+	 * Pass the current preferences to the listener now, and each reloaded snapshot after
+	 */
+	public synchronized void setReloadListener(Consumer<VisionPrefs> listener) {
+		reloadListener = listener;
+		listener.accept(current.get());
+	}
+
+	/**
+	 * Parse the preferences file and publish it. A file that fails to parse
+	 * or validate leaves the previous snapshot in place.
+	 */
+	public synchronized boolean reload() {
+		try {
+			VisionPrefs prefs = VisionPrefs.parse(Files.readAllLines(path, StandardCharsets.UTF_8));
+			current.set(prefs);
+			System.out.println("Loaded preferences: " + prefs);
+			if (reloadListener != null) {
+				reloadListener.accept(prefs);
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error reading preferences " + path + ": " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Rejected preferences " + path + ": " + e.getMessage());
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		Path dir = path.getParent();
+		try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watcher.take();
+
+				/**
+				 * Editors often write a file in several steps, wait for them to settle
+				 * and drop the events that piled up meanwhile
+				 */
+				Thread.sleep(SETTLE_MSEC);
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| path.getFileName().equals(event.context())) {
+						changed = true;
+					}
+				}
+				if (changed) {
+					reload();
+				}
+
+				if (!key.reset()) {
+					System.out.println("Preferences directory is no longer accessible: " + dir);
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
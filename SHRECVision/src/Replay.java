@@ -0,0 +1,181 @@
+import org.opencv.core.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Runs the vision pipeline over recorded or generated frames without cameras or a
+ * robot. Each frame's result is written to a CSV file, which only depends on the
+ * frames and the preferences, so two runs can be diffed to check for regressions.
+ * Timing is printed as a summary at the end instead.
+ *
+ * Usage: Replay <source> [--target Gear|Boiler] [--camera name] [--prefs prefs.txt] [--out results.csv] [--realtime] [--compare] [--frames n]
+ *
+ * The source is described as in FrameSource.parse(). By default frames are processed
+ * as fast as possible; --realtime paces them at their recorded timing instead.
+ *
+ * With --compare, every frame is also processed by a reference pipeline that searches
+ * the whole frame at full resolution with the HSV threshold and the contour detector,
+ * and the agreement of the two is printed. This shows what shortcuts like pyramid_scale cost in accuracy. Where
+ * both searched the whole frame, their masks are compared pixel for pixel, which checks
+ * threshold_mode=lut against the HSV threshold it replaces.
+ *
+ * With --camera, the preferences are that camera's, with its camera_<name>_ settings
+ * such as its thresholds and camera_horizontal_fov, see VisionPrefs.forCamera().
+ *
+ * With --frames, at most that many frames are processed, which ends a replay of a
+ * live stream such as mjpeg:http://localhost:8090/ from MjpegStandIn.
+ */
+public class Replay {
+	static { System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: Replay <source> [--target Gear|Boiler] [--camera name] [--prefs prefs.txt] [--out results.csv] [--realtime] [--compare] [--frames n]");
+			System.exit(2);
+		}
+
+		String spec = args[0];
+		UDPClient.VisionState target = null;
+		String camera = null;
+		String prefsFile = "prefs.txt";
+		String out = "replay.csv";
+		boolean realtime = false;
+		boolean compare = false;
+		int limit = Integer.MAX_VALUE;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--target")) {
+				target = UDPClient.VisionState.valueOf(args[++i]);
+			} else if (args[i].equals("--camera")) {
+				camera = args[++i];
+			} else if (args[i].equals("--prefs")) {
+				prefsFile = args[++i];
+			} else if (args[i].equals("--out")) {
+				out = args[++i];
+			} else if (args[i].equals("--realtime")) {
+				realtime = true;
+			} else if (args[i].equals("--compare")) {
+				compare = true;
+			} else if (args[i].equals("--frames")) {
+				limit = Integer.parseInt(args[++i]);
+			} else {
+				System.out.println("Unknown argument " + args[i]);
+				System.exit(2);
+			}
+		}
+		if (target == null) {
+			target = spec.startsWith("synthetic:") ?
+				UDPClient.VisionState.valueOf(spec.substring("synthetic:".length())) : UDPClient.VisionState.Gear;
+		}
+
+		VisionPrefs prefs = VisionPrefs.parse(Files.readAllLines(Paths.get(prefsFile), StandardCharsets.UTF_8));
+		if (camera != null) {
+			prefs = prefs.forCamera(camera);
+		}
+		FrameSource source = FrameSource.parse(spec);
+		if (!source.open()) {
+			System.out.println("Error opening " + source.getName());
+			System.exit(1);
+		}
+
+		VisionStats stats = new VisionStats(0);
+		VisionPipeline pipeline = new VisionPipeline(target, stats.pipeline(target.name()));
+		VisionPipeline reference = compare ? new VisionPipeline(target, stats.pipeline("Reference")) : null;
+		VisionPrefs referencePrefs = prefs.with("pyramid_scale", "1").with("roi_enabled", "false").with("threshold_mode", "hsv")
+			.with("detector", "contours");
+		Mat difference = new Mat();
+		long maskCompared = 0;
+		long maskDiffers = 0;
+		int agreed = 0;
+		int compared = 0;
+		double angleError = 0.0;
+		double maxAngleError = 0.0;
+		TargetEstimator estimator = new TargetEstimator();
+		Mat frame = new Mat();
+		int frames = 0;
+		int found = 0;
+		long start = System.nanoTime();
+		long busy = 0;
+
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8))) {
+			writer.println("frame,time_ms,found,contours,angle,score,filtered_angle,rate");
+			while (frames < limit && source.read(frame)) {
+				/**
+				 * Hold each frame until its recorded time when replaying in real time
+				 */
+				if (realtime) {
+					long wait = start + source.getFrameTime() - System.nanoTime();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+
+				long before = System.nanoTime();
+				boolean ok = pipeline.process(frame, prefs);
+				busy += System.nanoTime() - before;
+
+				if (reference != null) {
+					boolean expected = reference.process(frame, referencePrefs);
+					if (pipeline.getWorkspace().getRegion() == null) {
+						Core.compare(pipeline.getMask(), reference.getMask(), difference, Core.CMP_NE);
+						maskDiffers += Core.countNonZero(difference);
+						maskCompared++;
+					}
+					if (ok == expected) {
+						agreed++;
+					}
+					if (ok && expected) {
+						double error = Math.abs(pipeline.getAngle() - reference.getAngle());
+						angleError += error;
+						maxAngleError = Math.max(maxAngleError, error);
+						compared++;
+					}
+				}
+
+				if (ok) {
+					estimator.update(pipeline.getAngle(), source.getFrameTime(), prefs);
+				} else {
+					estimator.miss(source.getFrameTime(), prefs);
+				}
+
+				writer.printf(Locale.ROOT, "%d,%.3f,%b,%d,%.4f,%.4f,%.4f,%.4f%n", frames, source.getFrameTime() / 1e6, ok,
+					pipeline.getContourCount(), ok ? pipeline.getAngle() : 0.0, ok ? pipeline.getScore() : 0.0,
+					ok ? estimator.getAngle() : 0.0, ok ? estimator.getRate() : 0.0);
+				frames++;
+				if (ok) {
+					found++;
+				}
+			}
+		}
+
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf(Locale.ROOT, "%s: %d frames, target found in %d, %.1f frames/sec wall, %.1f frames/sec processing%n",
+			source.getName(), frames, found, frames / elapsed, frames / (busy / 1e9));
+		if (reference != null) {
+			System.out.printf(Locale.ROOT, "Compared to full resolution: found agrees in %d of %d frames, angle error mean %.4f max %.4f degrees%n",
+				agreed, frames, compared > 0 ? angleError / compared : 0.0, maxAngleError);
+			System.out.printf(Locale.ROOT, "Masks compared in %d frames, %d pixels differ%n", maskCompared, maskDiffers);
+		}
+		if (source instanceof MjpegSource) {
+			MjpegSource stream = (MjpegSource)source;
+			System.out.printf(Locale.ROOT, "Stream: %d bytes, %d frames received, %d skipped, %d decoded%n",
+				stream.getBytes(), stream.getFrames(), stream.getSkipped(), stream.getDecoded());
+		}
+		System.out.print(stats.summary());
+		System.out.println("Results written to " + out);
+
+		source.release();
+		pipeline.release();
+		if (reference != null) {
+			reference.release();
+		}
+		frame.release();
+		difference.release();
+	}
+}
@@ -0,0 +1,90 @@
+import org.opencv.core.*;
+
+/**
+ * Predicts where the target will be in the next frame, so only a window around it
+ * needs to be processed. The window is the box around both pieces of tape found in
+ * the previous frame, moved by the motion between the last two frames and padded
+ * on every side. There is no window until the target has been found, after it is
+ * lost, and every few frames so that a full frame search can catch a better target.
+ *
+ * The edges of the window are moved out to a grid of roi_grid pixels, so a target
+ * moving about the frame is processed in a limited set of windows. The views of the
+ * frame that VisionWorkspace keeps for each window are then made once and reused.
+ */
+public class RoiTracker {
+
+	private boolean locked = false;
+	private int left, top, right, bottom;
+	private double velocityX, velocityY;
+	private int sinceFullFrame = 0;
+	private final Rect window = new Rect();
+
+	/**
+	 * The window to search in the next frame of the given size, or null to search the whole frame
+	 */
+	public Rect predict(int width, int height, VisionPrefs p) {
+		if (!locked || ++sinceFullFrame >= p.getInt("roi_refresh_frames", 30)) {
+			sinceFullFrame = 0;
+			return null;
+		}
+
+		double padding = p.getDouble("roi_padding", 0.5);
+		double padX = (right - left) * padding + 8;
+		double padY = (bottom - top) * padding + 8;
+		snap(window, left + velocityX - padX, top + velocityY - padY, right + velocityX + padX, bottom + velocityY + padY,
+			width, height, p.getInt("roi_grid", 16));
+
+		/**
+		 * A window that is empty, or most of the frame anyway, is not worth it
+		 */
+		if (window.width <= 0 || window.height <= 0 || (double)window.width * window.height > 0.6 * width * height) {
+			return null;
+		}
+		return window;
+	}
+
+	/**
+	 * Set the window to the given box, with its edges moved out to the grid and kept
+	 * inside a frame of the given size
+	 */
+	public static void snap(Rect window, double left, double top, double right, double bottom, int width, int height, int grid) {
+		grid = Math.max(1, grid);
+		int x0 = Math.max(0, Math.floorDiv((int)Math.floor(left), grid) * grid);
+		int y0 = Math.max(0, Math.floorDiv((int)Math.floor(top), grid) * grid);
+		int x1 = Math.min(width, -Math.floorDiv(-(int)Math.ceil(right), grid) * grid);
+		int y1 = Math.min(height, -Math.floorDiv(-(int)Math.ceil(bottom), grid) * grid);
+		window.x = x0;
+		window.y = y0;
+		window.width = x1 - x0;
+		window.height = y1 - y0;
+	}
+
+	/**
+	 * Remember the box around the target found in this frame
+	 */
+	public void found(int l, int t, int r, int b) {
+		if (locked) {
+			velocityX = ((l + r) - (left + right)) / 2.0;
+			velocityY = ((t + b) - (top + bottom)) / 2.0;
+		} else {
+			velocityX = 0.0;
+			velocityY = 0.0;
+		}
+		left = l;
+		top = t;
+		right = r;
+		bottom = b;
+		locked = true;
+	}
+
+	/**
+	 * The target was not found, search the whole of the next frame
+	 */
+	public void lost() {
+		locked = false;
+	}
+
+	public boolean isLocked() {
+		return locked;
+	}
+}
@@ -0,0 +1,239 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thresholds and filters one frame as horizontal strips in parallel, so a single
+ * frame is spread over every core instead of one.
+ *
+ * The threshold works on each pixel alone, so every strip converts and thresholds
+ * only its own rows. The noise filter needs the rows around each strip as well:
+ * an opening erodes and then dilates, so it reaches twice the element's radius
+ * across a strip boundary. Every strip is thresholded before any is filtered, then
+ * each strip opens its rows plus that overlap from the shared thresholded image and
+ * keeps only its own rows for the mask. The mask is therefore the same as filtering
+ * the whole frame at once.
+ *
+ * Contours are then found in the whole mask as usual, so a piece of tape crossing
+ * a strip boundary is still one contour.
+ *
+ * Strips run under the same budget as whole frames, vision_cores. The frame thread
+ * already holds one of the cores and processes strips itself; a strip only goes to
+ * the shared pool for each further core it can take from the budget without waiting,
+ * so strips never run on more cores than the budget allows. Without a budget, as in
+ * Replay, the pool's size is the only limit.
+ *
+ * Once done with its own strips, the frame thread takes back those the pool has not
+ * started and processes them too, so a busy pool does not hold it up. It then parks
+ * until the pool's tasks have finished, rather than spinning on the core it holds.
+ */
+public class StripProcessor {
+
+	/**
+	 * One worker for each core of the budget but the frame thread's, shared by every
+	 * pipeline. Created with the first frame processed in strips, from its vision_cores.
+	 */
+	private static volatile ForkJoinPool pool = null;
+
+	/**
+	 * The cores that frames are processed under, or null for no limit but the pool's
+	 */
+	private Semaphore cores = null;
+
+	private Strip[] strips = new Strip[0];
+
+	/**
+	 * The pool's tasks still running, and the thread to wake up when the last one finishes
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile Thread waiter;
+
+	private Mat frame;
+	private VisionWorkspace ws;
+	private VisionPrefs prefs;
+	private ColorLut lut;
+	private Mat element;
+
+	/**
+	 * The part of the frame handled by one task. The task's tag is set by whichever
+	 * of the pool and the frame thread claims the strip first.
+	 */
+	private class Strip extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		int top, bottom;
+		boolean filter;
+		VisionWorkspace.RowViews views;
+		final Mat opened = new Mat();
+		byte[] pixels = new byte[0];
+		byte[] out = new byte[0];
+
+		/**
+		 * Run in the pool: process the strip unless the frame thread took it back
+		 */
+		@Override
+		protected void compute() {
+			try {
+				if (claim()) {
+					process();
+				}
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					LockSupport.unpark(waiter);
+				}
+			}
+		}
+
+		boolean claim() {
+			return compareAndSetForkJoinTaskTag((short)0, (short)1);
+		}
+
+		void process() {
+			if (filter) {
+				int overlap = element.rows() - 1;
+				int from = Math.max(0, top - overlap);
+				int to = Math.min(ws.threshold.rows(), bottom + overlap);
+				Imgproc.morphologyEx(views.rows(ws.threshold, from, to), opened, Imgproc.MORPH_OPEN, element);
+				views.rows(opened, top - from, bottom - from).copyTo(views.rows(ws.mask, top, bottom));
+				return;
+			}
+
+			Mat source = views.rows(frame, top, bottom);
+			Mat target = views.rows(ws.threshold, top, bottom);
+			if (lut != null) {
+				int size = source.rows() * source.cols();
+				if (out.length < size) {
+					pixels = new byte[size * 3];
+					out = new byte[size];
+				}
+				lut.apply(source, target, pixels, out);
+			} else {
+				Mat hsv = views.rows(ws.hsv, top, bottom);
+				Imgproc.cvtColor(source, hsv, Imgproc.COLOR_BGR2HSV);
+				Core.inRange(hsv, prefs.thd_color_low, prefs.thd_color_high, target);
+			}
+		}
+	}
+
+	/**
+	 * Run strips under the given cores, which the calling thread already holds one of
+	 */
+	public void setCores(Semaphore cores) {
+		this.cores = cores;
+	}
+
+	/**
+	 * Convert and threshold the whole frame into the workspace's threshold image, in the given number of strips
+	 */
+	public void threshold(Mat frame, VisionWorkspace ws, VisionPrefs p, ColorLut lut, int count) {
+		this.frame = frame;
+		this.ws = ws;
+		this.prefs = p;
+		this.lut = lut;
+		ws.hsv.create(frame.rows(), frame.cols(), CvType.CV_8UC3);
+		ws.threshold.create(frame.rows(), frame.cols(), CvType.CV_8UC1);
+		ws.prepareMask(frame.rows(), frame.cols());
+
+		if (pool == null) {
+			createPool(p);
+		}
+		count = Math.max(1, Math.min(count, frame.rows() / 8));
+		if (strips.length != count) {
+			release();
+			strips = new Strip[count];
+			for (int i = 0; i < count; i++) {
+				strips[i] = new Strip();
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			strips[i].top = frame.rows() * i / count;
+			strips[i].bottom = frame.rows() * (i + 1) / count;
+			strips[i].views = ws.getStripViews(i);
+		}
+		run(false);
+	}
+
+	/**
+	 * Open the threshold image into the mask with the given element, in the same strips
+	 */
+	public void morphology(Mat element) {
+		this.element = element;
+		run(true);
+		frame = null;
+	}
+
+	/**
+	 * Release the native buffers held by the strips
+	 */
+	public void release() {
+		for (Strip strip : strips) {
+			strip.opened.release();
+		}
+	}
+
+	private static synchronized void createPool(VisionPrefs p) {
+		if (pool == null) {
+			pool = new ForkJoinPool(Math.max(1, p.getInt("vision_cores", Runtime.getRuntime().availableProcessors()) - 1));
+		}
+	}
+
+	private void run(boolean filter) {
+		for (Strip strip : strips) {
+			strip.reinitialize();
+			strip.setForkJoinTaskTag((short)0);
+			strip.filter = filter;
+		}
+
+		/**
+		 * Hand the last strips to the pool for each core free in the budget, and
+		 * process the others on this thread while they run
+		 */
+		int helped = 0;
+		while (helped < strips.length - 1 && (cores == null || cores.tryAcquire())) {
+			helped++;
+		}
+		int own = strips.length - helped;
+		waiter = Thread.currentThread();
+		pending.set(helped);
+		try {
+			for (int i = own; i < strips.length; i++) {
+				pool.execute(strips[i]);
+			}
+			for (int i = 0; i < own; i++) {
+				strips[i].process();
+			}
+
+			/**
+			 * Take back the pool's strips that have not started, the last first
+			 */
+			for (int i = strips.length - 1; i >= own; i--) {
+				if (strips[i].claim()) {
+					strips[i].process();
+				}
+			}
+		} finally {
+			/**
+			 * Every task must be finished before the strips are reused. Parking makes
+			 * no garbage, unlike blocking in join(). A task is counted finished just
+			 * before it is marked done, so only that instant is spun on.
+			 */
+			while (pending.get() > 0) {
+				LockSupport.park(this);
+			}
+			for (int i = own; i < strips.length; i++) {
+				while (!strips[i].isDone()) {
+					Thread.onSpinWait();
+				}
+			}
+			if (cores != null) {
+				cores.release(helped);
+			}
+		}
+		for (int i = own; i < strips.length; i++) {
+			strips[i].join();
+		}
+	}
+}
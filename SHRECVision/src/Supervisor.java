@@ -0,0 +1,179 @@
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps track of the health of each external resource the vision process depends
+ * on, such as each camera and each socket, and paces their reconnection.
+ *
+ * Every resource reconnects on its own thread, never on the frame thread, so one
+ * failing camera or socket does not hold up the others. Between attempts it waits
+ * with exponential backoff: the delay doubles with every failed attempt up to a
+ * maximum, and is randomized between half and all of that so that resources which
+ * failed together, for example when the radio reboots, do not all retry at the
+ * same moment. A successful connection resets the delay.
+ *
+ * This class is shared with the RoboRIO like VisionPacket, so it does not read the
+ * preferences itself.
+ */
+public class Supervisor {
+
+	public enum Health {
+		/**
+		 * Not connected yet
+		 */
+		Connecting,
+		Healthy,
+		/**
+		 * Was healthy, has failed and is reconnecting
+		 */
+		Degraded
+	}
+
+	/**
+	 * The health of one resource. Its state is changed only by the thread that owns
+	 * the resource, and may be read from any thread.
+	 */
+	public static class Resource {
+		private final String name;
+		private final long initialNanos;
+		private final long maxNanos;
+
+		private volatile Health health = Health.Connecting;
+		private int attempts = 0;
+		private long downSince = System.nanoTime();
+
+		private volatile long failures = 0;
+		private volatile long recoveries = 0;
+		private volatile long lastRecoveryNanos = 0;
+		private volatile long maxRecoveryNanos = 0;
+		private volatile String reason = "";
+
+		public Resource(String name, long initialMsec, long maxMsec) {
+			this.name = name;
+			this.initialNanos = Math.max(1, initialMsec) * 1000000L;
+			this.maxNanos = Math.max(initialMsec, maxMsec) * 1000000L;
+		}
+
+		/**
+		 * Report that the resource is working
+		 */
+		public void healthy() {
+			if (health == Health.Healthy) {
+				return;
+			}
+			long down = System.nanoTime() - downSince;
+			if (health == Health.Degraded) {
+				recoveries++;
+				lastRecoveryNanos = down;
+				maxRecoveryNanos = Math.max(maxRecoveryNanos, down);
+				System.out.printf(Locale.ROOT, "%s recovered after %.0f ms%n", name, down / 1e6);
+			} else {
+				System.out.printf(Locale.ROOT, "%s connected after %.0f ms%n", name, down / 1e6);
+			}
+			health = Health.Healthy;
+			attempts = 0;
+		}
+
+		/**
+		 * Report that the resource failed, for the given reason
+		 */
+		public void failed(String why) {
+			failures++;
+			reason = why;
+			if (health == Health.Healthy) {
+				health = Health.Degraded;
+				downSince = System.nanoTime();
+				System.out.println(name + " degraded: " + why);
+			}
+		}
+
+		/**
+		 * Wait before the next attempt to reconnect, longer after each failed one.
+		 * Returns false if the thread was interrupted.
+		 */
+		public boolean backoff() {
+			long delay = nextDelay();
+			try {
+				Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * The delay before the next attempt, in nanoseconds, counting it as an attempt
+		 */
+		long nextDelay() {
+			long ceiling = initialNanos << Math.min(attempts, 20);
+			if (ceiling <= 0 || ceiling > maxNanos) {
+				ceiling = maxNanos;
+			}
+			attempts++;
+			return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Health getHealth() {
+			return health;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getRecoveries() {
+			return recoveries;
+		}
+
+		/**
+		 * How long the latest recovery took, from the failure to working again, in nanoseconds
+		 */
+		public long getLastRecovery() {
+			return lastRecoveryNanos;
+		}
+
+		public long getMaxRecovery() {
+			return maxRecoveryNanos;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Resource> resources = new CopyOnWriteArrayList<>();
+	private final long initialMsec;
+	private final long maxMsec;
+
+	/**
+	 * A supervisor whose resources back off from initialMsec up to maxMsec between attempts
+	 */
+	public Supervisor(long initialMsec, long maxMsec) {
+		this.initialMsec = initialMsec;
+		this.maxMsec = maxMsec;
+	}
+
+	/**
+	 * Start tracking a resource
+	 */
+	public Resource register(String name) {
+		Resource resource = new Resource(name, initialMsec, maxMsec);
+		resources.add(resource);
+		return resource;
+	}
+
+	/**
+	 * A line per resource with its health and recovery times
+	 */
+	public String summary() {
+		StringBuilder text = new StringBuilder();
+		for (Resource r : resources) {
+			text.append(String.format(Locale.ROOT, "%-16s %-10s failures %d, recoveries %d, last %.0f ms, max %.0f ms%s%n",
+				r.name, r.health, r.failures, r.recoveries, r.lastRecoveryNanos / 1e6, r.maxRecoveryNanos / 1e6,
+				r.health == Health.Healthy || r.reason.isEmpty() ? "" : " (" + r.reason + ")"));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,94 @@
+import org.opencv.core.*;
+
+/**
+ * Generated frames of a vision target drawn by SyntheticTarget. The target sweeps
+ * back and forth across the frame and moves closer and farther away, so every
+ * frame is different but the sequence is the same on every run.
+ */
+public class SyntheticSource implements FrameSource {
+
+	private final UDPClient.VisionState target;
+	private final int width;
+	private final int height;
+	private final int frames;
+	private final long framePeriod;
+	private int next = -1;
+	private long drawTime = 0;
+	private long captureTime = 0;
+
+	public SyntheticSource(UDPClient.VisionState target, int width, int height, int frames, double fps) {
+		this.target = target;
+		this.width = width;
+		this.height = height;
+		this.frames = frames;
+		this.framePeriod = (long)(1000000000.0 / fps);
+	}
+
+	@Override
+	public boolean open() {
+		next = 0;
+		return true;
+	}
+
+	@Override
+	public boolean isOpened() {
+		return next >= 0;
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		if (next < 0 || next >= frames) {
+			return false;
+		}
+		long before = System.nanoTime();
+		double phase = 2.0 * Math.PI * next / frames;
+		double scale = width / SHRECVision.camera_width;
+		frame.create(height, width, CvType.CV_8UC3);
+		SyntheticTarget.draw(frame, target,
+			width * (0.5 + 0.3 * Math.sin(phase)),
+			height * (0.5 + 0.1 * Math.sin(2.0 * phase)),
+			scale * (9.0 + 3.0 * Math.cos(phase)),
+			next);
+		drawTime = System.nanoTime() - before;
+		captureTime = before;
+		next++;
+		return true;
+	}
+
+	@Override
+	public boolean grab() {
+		if (next < 0 || next >= frames) {
+			return false;
+		}
+		next++;
+		return true;
+	}
+
+	@Override
+	public long getFrameTime() {
+		return Math.max(0, next - 1) * framePeriod;
+	}
+
+	/**
+	 * The time taken to draw the frame, which stands in for decoding it
+	 */
+	@Override
+	public long getDecodeTime() {
+		return drawTime;
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void release() {
+		next = -1;
+	}
+
+	@Override
+	public String getName() {
+		return "synthetic:" + target;
+	}
+}
@@ -0,0 +1,65 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.util.Random;
+
+/**
+ * Draws the reflective tape of a vision target into a frame, using the physical
+ * tape geometry from SHRECVision. The tape is drawn in a bright green that passes
+ * the default thresholds in prefs.txt, over a dark background with a few specks of
+ * noise for the morphology stage to remove. Used to exercise the pipeline without
+ * a camera.
+ */
+public class SyntheticTarget {
+
+	private static final Scalar background = new Scalar(40, 40, 40);
+	private static final Scalar tape = new Scalar(140, 255, 110);
+
+	/**
+	 * Fill the frame with the target centered on the given pixel, at the given scale.
+	 * The frame must already be allocated as an 8-bit, 3 channel image.
+	 */
+	public static void draw(Mat frame, UDPClient.VisionState target, double centerX, double centerY, double pixelsPerInch, long seed) {
+		frame.setTo(background);
+
+		if (target == UDPClient.VisionState.Gear) {
+			/**
+			 * Two vertical strips, with their outer edges gear_width_difference apart
+			 */
+			double half = SHRECVision.gear_width_difference / 2.0;
+			rectangle(frame, centerX, centerY, -half, -SHRECVision.gear_height / 2.0,
+				-half + SHRECVision.gear_width, SHRECVision.gear_height / 2.0, pixelsPerInch);
+			rectangle(frame, centerX, centerY, half - SHRECVision.gear_width, -SHRECVision.gear_height / 2.0,
+				half, SHRECVision.gear_height / 2.0, pixelsPerInch);
+		} else if (target == UDPClient.VisionState.Boiler) {
+			/**
+			 * Two horizontal strips, with their outer edges boiler_height_difference apart
+			 */
+			double half = SHRECVision.boiler_height_difference / 2.0;
+			double width = SHRECVision.boiler_width / 2.0;
+			rectangle(frame, centerX, centerY, -width, -half,
+				width, -half + SHRECVision.boiler_height_top, pixelsPerInch);
+			rectangle(frame, centerX, centerY, -width, half - SHRECVision.boiler_height_bottom,
+				width, half, pixelsPerInch);
+		}
+
+		/**
+		 * Specks of noise, smaller than the morphology element
+		 */
+		Random random = new Random(seed);
+		for (int i = 0; i < 20; i++) {
+			Point speck = new Point(random.nextInt(Math.max(1, frame.cols())), random.nextInt(Math.max(1, frame.rows())));
+			Imgproc.circle(frame, speck, 1, tape, -1);
+		}
+	}
+
+	/**
+	 * Draw a filled rectangle given in inches relative to the target center
+	 */
+	private static void rectangle(Mat frame, double centerX, double centerY, double left, double top, double right, double bottom, double pixelsPerInch) {
+		Imgproc.rectangle(frame,
+			new Point(centerX + left * pixelsPerInch, centerY + top * pixelsPerInch),
+			new Point(centerX + right * pixelsPerInch - 1, centerY + bottom * pixelsPerInch - 1),
+			tape, -1);
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Picks the pair of blobs in a VisionWorkspace that best matches the known shape
+ * of a vision target's reflective tape.
+ *
+ * Each blob is first checked on its own, which rejects most noise cheaply: its
+ * area must be within the preferences, its box well filled, and its aspect ratio
+ * close to that of a piece of tape. Only the largest survivors are then scored in
+ * pairs, on how well their sizes, alignment and spacing match the target geometry
+ * in SHRECVision. Every term is between 0 and 1 and the pair score is their
+ * product, so one badly wrong property is enough to reject a pair.
+ *
+ * A selector is not thread safe, each pipeline must use its own.
+ */
+public class TapePairSelector {
+
+	/**
+	 * The most blobs that are scored in pairs, keeping the pairwise stage small
+	 */
+	private static final int maxCandidates = 12;
+
+	/**
+	 * The width over height of each piece of tape
+	 */
+	private static final double gear_aspect = SHRECVision.gear_width / SHRECVision.gear_height;
+	private static final double boiler_aspect_top = SHRECVision.boiler_width / SHRECVision.boiler_height_top;
+	private static final double boiler_aspect_bottom = SHRECVision.boiler_width / SHRECVision.boiler_height_bottom;
+
+	private final UDPClient.VisionState target;
+	private final int[] candidates = new int[maxCandidates];
+
+	/**
+	 * The selected pair of the latest call, in the workspace's indices
+	 */
+	private int index1 = -1;
+	private int index2 = -1;
+	private double score = 0.0;
+
+	public TapePairSelector(UDPClient.VisionState target) {
+		this.target = target;
+	}
+
+	/**
+	 * Select the best pair of blobs. Returns true if one scored at least pair_min_score.
+	 */
+	public boolean select(VisionWorkspace ws, VisionPrefs p) {
+		index1 = -1;
+		index2 = -1;
+		score = 0.0;
+
+		/**
+		 * Reject single blobs on area, fill and aspect ratio, keeping the largest few
+		 */
+		double tolerance = p.getDouble("pair_aspect_tolerance", 2.0);
+		double minFill = p.getDouble("pair_min_fill", 0.5);
+		int count = 0;
+		for (int i = 0; i < ws.getCount(); i++) {
+			double area = ws.getArea(i);
+			if (area <= p.min_area || area >= p.max_area) {
+				continue;
+			}
+			double box = (double)ws.getWidth(i) * ws.getHeight(i);
+			if (area / box < minFill) {
+				continue;
+			}
+			double aspect = (double)ws.getWidth(i) / ws.getHeight(i);
+			if (!aspectMatches(aspect, tolerance)) {
+				continue;
+			}
+
+			int slot = count;
+			while (slot > 0 && ws.getArea(candidates[slot - 1]) < area) {
+				if (slot < maxCandidates) {
+					candidates[slot] = candidates[slot - 1];
+				}
+				slot--;
+			}
+			if (slot < maxCandidates) {
+				candidates[slot] = i;
+			}
+			count = Math.min(count + 1, maxCandidates);
+		}
+
+		/**
+		 * Score every pair of the survivors
+		 */
+		for (int a = 0; a < count; a++) {
+			for (int b = a + 1; b < count; b++) {
+				double s = target == UDPClient.VisionState.Boiler ?
+					scoreBoiler(ws, candidates[a], candidates[b]) : scoreGear(ws, candidates[a], candidates[b]);
+				if (s > score) {
+					score = s;
+					index1 = candidates[a];
+					index2 = candidates[b];
+				}
+			}
+		}
+
+		if (score < p.getDouble("pair_min_score", 0.3)) {
+			index1 = -1;
+			index2 = -1;
+			return false;
+		}
+		return true;
+	}
+
+	private boolean aspectMatches(double aspect, double tolerance) {
+		if (target == UDPClient.VisionState.Boiler) {
+			return aspect >= boiler_aspect_top / tolerance && aspect <= boiler_aspect_bottom * tolerance;
+		}
+		return aspect >= gear_aspect / tolerance && aspect <= gear_aspect * tolerance;
+	}
+
+	/**
+	 * Two vertical strips of the same size, side by side, with their outer edges
+	 * gear_width_difference apart
+	 */
+	private static double scoreGear(VisionWorkspace ws, int i, int j) {
+		double hi = ws.getHeight(i);
+		double hj = ws.getHeight(j);
+		double height = (hi + hj) / 2.0;
+		double size = Math.min(hi, hj) / Math.max(hi, hj);
+		double align = 1.0 - Math.abs(ws.getCenterY(i) - ws.getCenterY(j)) / height;
+
+		double span = Math.max(ws.getRight(i), ws.getRight(j)) - Math.min(ws.getLeft(i), ws.getLeft(j));
+		double expected = SHRECVision.gear_width_difference / SHRECVision.gear_height;
+		double spacing = 1.0 - Math.abs(span / height / expected - 1.0);
+
+		return clamp(size) * clamp(align) * clamp(spacing) * fill(ws, i, j);
+	}
+
+	/**
+	 * Two horizontal strips of the same width, one above the other, the upper twice
+	 * as tall as the lower, with their outer edges boiler_height_difference apart
+	 */
+	private static double scoreBoiler(VisionWorkspace ws, int i, int j) {
+		int upper = ws.getTop(i) <= ws.getTop(j) ? i : j;
+		int lower = upper == i ? j : i;
+
+		double wu = ws.getWidth(upper);
+		double wl = ws.getWidth(lower);
+		double width = (wu + wl) / 2.0;
+		double size = Math.min(wu, wl) / Math.max(wu, wl);
+		double align = 1.0 - Math.abs(ws.getCenterX(upper) - ws.getCenterX(lower)) / width;
+
+		double span = ws.getBottom(lower) - ws.getTop(upper);
+		double expected = SHRECVision.boiler_height_difference / SHRECVision.boiler_width;
+		double spacing = 1.0 - Math.abs(span / width / expected - 1.0);
+
+		double thickness = (double)ws.getHeight(upper) / ws.getHeight(lower);
+		double expectedThickness = SHRECVision.boiler_height_top / SHRECVision.boiler_height_bottom;
+		double ratio = 1.0 - Math.abs(thickness / expectedThickness - 1.0) / 2.0;
+
+		return clamp(size) * clamp(align) * clamp(spacing) * clamp(ratio) * fill(ws, upper, lower);
+	}
+
+	/**
+	 * The mean of how well each blob fills its box
+	 */
+	private static double fill(VisionWorkspace ws, int i, int j) {
+		double fi = ws.getArea(i) / ((double)ws.getWidth(i) * ws.getHeight(i));
+		double fj = ws.getArea(j) / ((double)ws.getWidth(j) * ws.getHeight(j));
+		return clamp((fi + fj) / 2.0);
+	}
+
+	private static double clamp(double value) {
+		return Math.max(0.0, Math.min(1.0, value));
+	}
+
+	public int getIndex1() {
+		return index1;
+	}
+
+	public int getIndex2() {
+		return index2;
+	}
+
+	/**
+	 * The score of the selected pair, between 0 and 1
+	 */
+	public double getScore() {
+		return score;
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Smooths the incidence angle of one vision target and estimates how fast it is
+ * changing, using an alpha-beta filter keyed on the capture time of each frame
+ * rather than on the time it was processed. The angle can then be extrapolated
+ * to the moment it is published, so the robot aims at where the target is now
+ * instead of where it was when the frame was captured.
+ *
+ * A measurement far from the predicted angle, or one that follows a long gap
+ * without the target, restarts the filter at that measurement instead of
+ * dragging the old estimate across.
+ *
+ * An estimator is not thread safe, it is updated by the thread processing frames.
+ */
+public class TargetEstimator {
+
+	private boolean valid = false;
+	private long timestamp;
+	private double angle;
+	private double rate;
+
+	/**
+	 * Add the angle measured in a frame captured at the given System.nanoTime()
+	 */
+	public void update(double measured, long captured, VisionPrefs p) {
+		double dt = (captured - timestamp) / 1e9;
+		if (!valid || dt > p.getInt("estimator_timeout_msec", 500) / 1000.0) {
+			reset(measured, captured);
+			return;
+		}
+		if (dt <= 0.0) {
+			/**
+			 * Out of order or repeated frame, there is no motion to learn from
+			 */
+			return;
+		}
+
+		double predicted = angle + rate * dt;
+		double residual = measured - predicted;
+		if (Math.abs(residual) > p.getDouble("estimator_gate_deg", 10.0)) {
+			reset(measured, captured);
+			return;
+		}
+
+		angle = predicted + p.getDouble("estimator_alpha", 0.5) * residual;
+		rate += p.getDouble("estimator_beta", 0.1) * residual / dt;
+		timestamp = captured;
+	}
+
+	/**
+	 * The target was not found in a frame captured at the given System.nanoTime()
+	 */
+	public void miss(long captured, VisionPrefs p) {
+		if (valid && (captured - timestamp) / 1e9 > p.getInt("estimator_timeout_msec", 500) / 1000.0) {
+			valid = false;
+		}
+	}
+
+	private void reset(double measured, long captured) {
+		valid = true;
+		timestamp = captured;
+		angle = measured;
+		rate = 0.0;
+	}
+
+	/**
+	 * Whether there is an estimate, meaning the target was found recently
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * The filtered angle in degrees at the capture time of the latest frame
+	 */
+	public double getAngle() {
+		return angle;
+	}
+
+	/**
+	 * The rate the angle is changing, in degrees per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * The capture time of the latest frame, on the System.nanoTime() clock
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * The angle extrapolated to the given System.nanoTime()
+	 */
+	public double predict(long time) {
+		return angle + rate * (time - timestamp) / 1e9;
+	}
+
+	/**
+	 * An angle changing at the given rate, extrapolated over the time since its frame
+	 * was captured, but no further than the limit, so a stale frame or a bad rate
+	 * cannot swing the published angle far
+	 */
+	public static double extrapolate(double angle, double rate, long elapsedNanos, long limitNanos) {
+		return angle + rate * Math.min(elapsedNanos, limitNanos) / 1e9;
+	}
+}
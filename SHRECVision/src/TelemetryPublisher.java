@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends each encoded VisionPacket to every subscriber: the RoboRIO, and any number
+ * of dashboards or logging laptops.
+ *
+ * A packet is encoded once into one buffer and the same datagram is sent to each
+ * subscriber in turn, only its address changing, so a listener costs one send()
+ * and nothing more. A subscriber may be a multicast group, which reaches every
+ * listener that joined it with a single send; the TTL is left at 1, so it stays on
+ * the robot's network.
+ *
+ * Subscribers other than the RoboRIO can be limited to a maximum rate, so a slow
+ * laptop on the radio does not receive every packet. A limited subscriber still
+ * gets the newest measurement at its own rate, never an old one.
+ */
+public class TelemetryPublisher {
+
+	/**
+	 * One destination of the telemetry
+	 */
+	public static class Subscriber {
+		private final InetSocketAddress address;
+		private final long intervalNanos;
+		private long lastSent;
+		private volatile long sent = 0;
+		private volatile long skipped = 0;
+		private volatile long failed = 0;
+
+		/**
+		 * A subscriber receiving at most maxRate packets per second, or every packet when maxRate is 0
+		 */
+		public Subscriber(InetSocketAddress address, double maxRate) {
+			this.address = address;
+			this.intervalNanos = maxRate > 0 ? (long)(1e9 / maxRate) : 0;
+			this.lastSent = System.nanoTime() - intervalNanos;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * The number of packets not sent to this subscriber because of its rate limit
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+
+		@Override
+		public String toString() {
+			return address.getHostString() + ":" + address.getPort()
+				+ (intervalNanos > 0 ? "@" + Math.round(1e9 / intervalNanos) : "");
+		}
+	}
+
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Add a subscriber, returning it
+	 */
+	public Subscriber add(InetSocketAddress address, double maxRate) {
+		Subscriber subscriber = new Subscriber(address, maxRate);
+		subscribers.add(subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * An address written as host:port
+	 */
+	public static InetSocketAddress parseAddress(String text) throws UnknownHostException {
+		int colon = text.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Expected host:port: " + text);
+		}
+		InetAddress host = InetAddress.getByName(text.substring(0, colon).trim());
+		return new InetSocketAddress(host, Integer.parseInt(text.substring(colon + 1).trim()));
+	}
+
+	/**
+	 * Add subscribers from a comma separated list of host:port, each optionally
+	 * followed by @rate for a maximum rate in packets per second, for example
+	 * "10.54.50.10:5801@20, 239.54.50.1:5802". Entries that cannot be parsed are
+	 * reported and skipped.
+	 */
+	public void addAll(String list) {
+		for (String entry : list.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			try {
+				double rate = 0.0;
+				int at = entry.indexOf('@');
+				if (at >= 0) {
+					rate = Double.parseDouble(entry.substring(at + 1));
+					entry = entry.substring(0, at);
+				}
+				add(parseAddress(entry), rate);
+			} catch (RuntimeException | UnknownHostException e) {
+				System.out.println("Ignoring telemetry subscriber " + entry + ": " + e);
+			}
+		}
+	}
+
+	public void remove(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Send the encoded packet in the given datagram to every subscriber due one
+	 */
+	public void publish(DatagramSocket socket, DatagramPacket datagram) {
+		long now = System.nanoTime();
+		for (Subscriber subscriber : subscribers) {
+			if (now - subscriber.lastSent < subscriber.intervalNanos) {
+				subscriber.skipped++;
+				continue;
+			}
+			datagram.setSocketAddress(subscriber.address);
+			try {
+				socket.send(datagram);
+				subscriber.lastSent = now;
+				subscriber.sent++;
+			} catch (IOException e) {
+				/**
+				 * One unreachable subscriber must not keep the others from their packets
+				 */
+				if (subscriber.failed++ == 0) {
+					System.out.println("Error sending telemetry to " + subscriber + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A line per subscriber with its packet counts
+	 */
+	public String summary() {
+		StringBuilder text = new StringBuilder();
+		for (Subscriber subscriber : subscribers) {
+			text.append(String.format("telemetry %s: %d sent, %d rate limited, %d failed%n",
+				subscriber, subscriber.sent, subscriber.skipped, subscriber.failed));
+		}
+		return text.toString();
+	}
+}
@@ -1,12 +1,19 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class UDPClient implements Runnable {
 
 	/**
 	 * 0: Incidence Angle
+	 *
+	 * The latest measurement and the vision state, published together. The frame
+	 * thread and the receive thread each swap in a new snapshot, and the sender and
+	 * any other reader take the whole of it at once without locking.
 	 */
-	private double angle;
+	private final AtomicReference<VisionSnapshot> snapshot = new AtomicReference<>(VisionSnapshot.EMPTY);
 
 	public enum VisionState {
 		Boiler,
@@ -15,127 +22,286 @@ public class UDPClient implements Runnable {
 		Disabled
 	}
 	
-	private VisionState state = VisionState.Idle;
+	private static final VisionState[] STATES = VisionState.values();
+	
+	/**
+	 * Called when the server asks for the flight recorder to be saved
+	 */
+	private volatile Runnable recordListener;
+	
+	private volatile DatagramSocket clientSocket;
+	
+	/**
+	 * Held while sending and while the socket is closed or reopened, so the sender
+	 * never sends on a socket the receive thread is replacing
+	 */
+	private final Object socketLock = new Object();
 	
-	private DatagramSocket clientSocket;
 	private InetAddress IPAddress;
-	private byte[] sendData;
-	private byte[] receiveData;
+	private final byte[] sendData = new byte[VisionPacket.SIZE];
+	private final byte[] receiveData = new byte[1024];
+	private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendData);
+	private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData);
+	private final VisionPacket sendPacket = new VisionPacket();
+	private final VisionPacket receivePacket = new VisionPacket();
+	private final DatagramPacket sendDatagram = new DatagramPacket(sendData, VisionPacket.SIZE);
+	private final DatagramPacket receiveDatagram = new DatagramPacket(receiveData, receiveData.length);
+	private long sequence = 0;
 	
-	private void startSocket() {
-		// Start the UDP socket and open a connection to the server
-		try {
-			clientSocket = new DatagramSocket();
-		} catch (SocketException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		try {
-			IPAddress = InetAddress.getByName("10.54.50.2");
-		} catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		angle = 0.0;
-		
-		if (isConnected()) {
-			System.out.println("Successfully connected to UDP Server");
-			setVisionState(VisionState.Idle);
-		} else {
-			System.out.println("Failed to connect to UDP Server");
-			setVisionState(VisionState.Disabled);
-			UDPClient.this.closeSocket();
-			
+	/**
+	 * Everyone the packets are sent to, the RoboRIO first. Only the RoboRIO's
+	 * responses set the vision state.
+	 */
+	private final TelemetryPublisher publisher = new TelemetryPublisher();
+	private final TelemetryPublisher.Subscriber server;
+	
+	/**
+	 * The longest time between two packets when the angle does not change
+	 */
+	private final long heartbeatNanos;
+	
+	/**
+	 * The furthest the angle is extrapolated past the capture time of its frame
+	 */
+	private volatile long predictionLimitNanos = 200000000L;
+	
+	/**
+	 * The thread sending packets, woken up by every new angle
+	 */
+	private volatile Thread sender;
+	
+	/**
+	 * Where the time spent encoding and sending each packet is recorded
+	 */
+	private volatile VisionStats.Pipeline stats;
+	
+	/**
+	 * Whether the server is answering, and the backoff between attempts to reopen the socket
+	 */
+	private volatile Supervisor.Resource health = new Supervisor.Resource("UDP client", 100, 5000);
+	
+	public UDPClient() {
+		this(100);
+	}
+	
+	public UDPClient(long heartbeatMsec) {
+		this(new InetSocketAddress("10.54.50.2", 5800), heartbeatMsec);
+	}
+	
+	/**
+	 * A client of the UDP server at the given address, such as a stand-in on this machine
+	 */
+	public UDPClient(InetSocketAddress serverAddress, long heartbeatMsec) {
+		server = publisher.add(serverAddress, 0.0);
+		heartbeatNanos = heartbeatMsec * 1000000L;
+	}
+	
+	/**
+	 * Start the UDP socket, retrying with backoff until it opens. The vision state
+	 * stays Idle meanwhile, so the processing loop keeps running. Returns false if
+	 * the thread was interrupted.
+	 */
+	private boolean startSocket() {
+		while (true) {
 			try {
-				Thread.sleep(1000);
-			} catch(InterruptedException e) {
-				e.printStackTrace();
+				clientSocket = new DatagramSocket();
+				clientSocket.setSoTimeout(500);
+				IPAddress = server.getAddress().getAddress();
+				System.out.println("Successfully connected to UDP Server");
+				setVisionState(VisionState.Idle);
+				return true;
+			} catch (SocketException e) {
+				System.out.println("Failed to connect to UDP Server: " + e.getMessage());
+				health.failed(e.getMessage());
+				UDPClient.this.closeSocket();
+				if (!health.backoff()) {
+					return false;
+				}
 			}
-			UDPClient.this.startSocket();
 		}
 	}
 	
-	private void updateSocket() {
-		sendData = new byte[1024];
-		receiveData = new byte[1024];
-	
-		// Generate a message to send
-		String request = generateRequest();
-		sendData = request.getBytes();
+	private void sendUpdate() {
+		long start = System.nanoTime();
+		
+		// Encode the latest measurement into the reused packet buffer
+		VisionSnapshot latest = snapshot.get();
+		sendPacket.state = latest.state;
+		sendPacket.flags = latest.targetFound ? VisionPacket.FLAG_TARGET_FOUND : 0;
+		sendPacket.timestamp = latest.timestamp;
+		sendPacket.angle = latest.angle;
+		sendPacket.score = latest.score;
+		sendPacket.rate = latest.rate;
+		sendPacket.sequence = ++sequence;
+		sendPacket.latency = sendPacket.timestamp != 0 ? System.nanoTime() - sendPacket.timestamp : 0;
+		
+		// Move the angle on to where the target should be by now
+		sendPacket.angle = TargetEstimator.extrapolate(sendPacket.angle, sendPacket.rate, sendPacket.latency, predictionLimitNanos);
+		sendPacket.write(sendBuffer);
 	
-		System.out.println("Request: " + request);
-		// Send the request to the UDP Server
-		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, 5800);
-		try {
-			clientSocket.send(sendPacket);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Send the request to the UDP Server and every other subscriber
+		synchronized (socketLock) {
+			DatagramSocket socket = clientSocket;
+			if (socket != null && !socket.isClosed()) {
+				publisher.publish(socket, sendDatagram);
+			}
 		}
 		
-		System.out.println("Awaiting Server");
-		try {
-			clientSocket.setSoTimeout(500);
-		} catch (SocketException e) {
-			e.printStackTrace();
+		VisionStats.Pipeline s = stats;
+		if (s != null) {
+			s.record(VisionStats.Stage.Publish, System.nanoTime() - start);
 		}
-		
-		// Receive a response from the server
-		String response = "";
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+	}
+	
+	private void receiveUpdate() {
+		// Receive a response from the server, going idle if it stops answering
+		VisionState next;
+		boolean record = false;
+		DatagramSocket socket = clientSocket;
 		try {
-			clientSocket.receive(receivePacket);
-			response = new String(receivePacket.getData());
+			receiveDatagram.setLength(receiveData.length);
+			socket.receive(receiveDatagram);
+			if (!receiveDatagram.getSocketAddress().equals(server.getAddress())) {
+				return;
+			}
+			receiveBuffer.clear();
+			receiveBuffer.limit(receiveDatagram.getLength());
+			if (!receivePacket.read(receiveBuffer) || receivePacket.state >= STATES.length) {
+				System.out.println("Ignoring malformed response from server");
+				return;
+			}
+			next = STATES[receivePacket.state];
+			record = receivePacket.hasFlag(VisionPacket.FLAG_RECORD);
+			health.healthy();
+		} catch (SocketTimeoutException e) {
+			health.failed("no response from server");
+			next = VisionState.Idle;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			response = "1";
+			// The socket itself failed, open a new one after a backoff. The sender
+			// waits while it is replaced, and an interrupt leaves the backoff and
+			// the receive loop.
+			health.failed(e.getMessage());
+			synchronized (socketLock) {
+				UDPClient.this.closeSocket();
+			}
+			if (health.backoff()) {
+				synchronized (socketLock) {
+					UDPClient.this.startSocket();
+				}
+			}
+			return;
 		}
 		
-		System.out.println("Response: " + response);
-		if (response.substring(0, 1).equals("3")) {
-			setVisionState(VisionState.Boiler);
-		} else if (response.substring(0, 1).equals("2")) {
-			setVisionState(VisionState.Gear);
-		} else if (response.substring(0, 1).equals("1")) {
-			setVisionState(VisionState.Idle);
-		} else if (response.substring(0, 1).equals("0")) {
-			setVisionState(VisionState.Disabled);
+		if (getVisionState() != next) {
+			setVisionState(next);
+			System.out.println("Vision state: " + next);
 		}
-
-		try {
-			Thread.sleep(500);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
+		
+		// The server may ask for the flight recorder to be saved
+		Runnable listener = recordListener;
+		if (record && listener != null) {
+			listener.run();
 		}
 	}
 	
 	private void closeSocket() {
-		clientSocket.close();
-		System.out.println("Shutting down socket");
+		DatagramSocket socket = clientSocket;
+		if (socket != null) {
+			socket.close();
+			System.out.println("Shutting down socket");
+		}
+	}
+	
+	public void setVisionState(VisionState s) {
+		VisionSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withState(s.ordinal())));
+	}
+	
+	public VisionState getVisionState() {
+		return STATES[snapshot.get().state];
+	}
+	
+	/**
+	 * The latest measurement and vision state, all from the same update
+	 */
+	public VisionSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * Report the connection's health to a supervisor instead of keeping it alone
+	 */
+	public void setHealth(Supervisor.Resource resource) {
+		health = resource;
+	}
+	
+	public void setStats(VisionStats.Pipeline pipeline) {
+		stats = pipeline;
+	}
+	
+	/**
+	 * Also send every packet to the subscribers in the given list, see TelemetryPublisher.addAll()
+	 */
+	public void addSubscribers(String list) {
+		publisher.addAll(list);
+	}
+	
+	public TelemetryPublisher getPublisher() {
+		return publisher;
+	}
+	
+	public void setRecordListener(Runnable listener) {
+		recordListener = listener;
+	}
+	
+	/**
+	 * Limit how far past the capture time of its frame the angle is extrapolated
+	 */
+	public void setPredictionLimit(long msec) {
+		predictionLimitNanos = msec * 1000000L;
 	}
 	
-	private String generateRequest() {
-		double a = getAngle();
-		String request = a + "!";
-		return request;
+	public void setAngle(double _a) {
+		setTarget(_a, 0.0, 0.0, System.nanoTime());
 	}
 	
-	public synchronized void setVisionState(VisionState s) {
-		state = s;
+	/**
+	 * Record a target measured in a frame captured at the given System.nanoTime(),
+	 * with the rate its angle is changing in degrees per second, and wake up the
+	 * sender so it is published right away. The angle is extrapolated at that rate
+	 * up to the time each packet is sent.
+	 */
+	public void setTarget(double _a, double _rate, double _score, long _timestamp) {
+		VisionSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withTarget(_a, _rate, _score, _timestamp)));
+		wakeSender();
 	}
 	
-	public synchronized VisionState getVisionState() {
-		return state;
+	/**
+	 * Record that no target was found in a frame captured at the given System.nanoTime().
+	 * The last angle is kept, but no longer flagged as a target.
+	 */
+	public void setNoTarget(long _timestamp) {
+		VisionSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withNoTarget(_timestamp)));
+		wakeSender();
 	}
 	
-	public synchronized void setAngle(double _a) {
-		angle = _a;
+	private void wakeSender() {
+		Thread t = sender;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
 	}
 	
-	public synchronized double getAngle() {
-		return angle;
+	public double getAngle() {
+		return snapshot.get().angle;
 	}
 	
 	public boolean isConnected() {
@@ -144,11 +310,29 @@ public class UDPClient implements Runnable {
 
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-		UDPClient.this.startSocket();
-		while (getVisionState() != VisionState.Disabled) {
-			UDPClient.this.updateSocket();
+		if (!UDPClient.this.startSocket()) {
+			return;
+		}
+		
+		// Receive vision states from the server on a separate thread
+		Thread receiver = new Thread(() -> {
+			while (getVisionState() != VisionState.Disabled && !Thread.currentThread().isInterrupted()) {
+				UDPClient.this.receiveUpdate();
+			}
+		}, "UDP receive");
+		receiver.setDaemon(true);
+		receiver.start();
+		
+		// Send on every new angle, or on the heartbeat when nothing changes
+		sender = Thread.currentThread();
+		while (getVisionState() != VisionState.Disabled && !Thread.currentThread().isInterrupted()) {
+			UDPClient.this.sendUpdate();
+			LockSupport.parkNanos(this, heartbeatNanos);
+		}
+		sender = null;
+		receiver.interrupt();
+		synchronized (socketLock) {
+			UDPClient.this.closeSocket();
 		}
-		UDPClient.this.closeSocket();
 	}
 }
@@ -1,13 +1,40 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UDPServer implements Runnable {
 
 	/**
 	 * 0: Incidence Angle
+	 *
+	 * The latest measurement and the vision state are published together as one
+	 * immutable snapshot. The socket thread swaps in a new one for every measurement
+	 * and robot code for every state change; readers take the whole of it at once.
+	 * Readers never block the socket thread and the socket thread never waits for readers.
 	 */
-	private double angle;
-
+	private final AtomicReference<VisionSnapshot> snapshot = new AtomicReference<>(VisionSnapshot.EMPTY);
+	
+	/**
+	 * Packet counters, only written by the socket thread
+	 */
+	private volatile long received;
+	private volatile long dropped;
+	private volatile long stale;
+	private volatile long failed;
+	
+	/**
+	 * The furthest getPredictedAngle() extrapolates past the arrival of the latest packet
+	 */
+	private static final long maxPredictionNanos = 250000000L;
+	
+	/**
+	 * How long without a packet before the vision client counts as gone. Its next
+	 * packet then starts a new sequence, in case it restarted.
+	 */
+	private static final long clientTimeoutNanos = 500000000L;
+	
 	public enum VisionState {
 		Boiler,
 		Gear,
@@ -15,144 +42,364 @@ public class UDPServer implements Runnable {
 		Disabled
 	}
 	
-	private VisionState state = VisionState.Idle;
+	private static final VisionState[] STATES = VisionState.values();
 	
-	private DatagramSocket serverSocket;
-	private byte[] sendData;
-	private byte[] receiveData;
+	/**
+	 * Set when the robot wants the vision flight recorder saved
+	 */
+	private volatile boolean recordRequested = false;
 	
-	private void startSocket() {
-		// Start the UDP socket and open a connection to the server
-		try {
-			// Bind the socket to this port on roboRIO-5450-FRC.local 5800-5810
-			serverSocket = new DatagramSocket(5800);
-		} catch (SocketException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		angle = 0.0;
-		
-		if (isConnected()) {
-			System.out.println("Successfully started UDP Server");
-			setVisionState(VisionState.Idle);
-		} else {
-			System.out.println("Failed to start UDP Server");
-			setVisionState(VisionState.Disabled);
-			UDPServer.this.closeSocket();
-			
+	private final int port;
+	
+	/**
+	 * Whether the vision client is reporting, and the backoff between attempts to bind the socket
+	 */
+	private final Supervisor.Resource health = new Supervisor.Resource("UDP server", 100, 5000);
+	private DatagramChannel serverChannel;
+	private Selector selector;
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(VisionPacket.SIZE);
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1024);
+	private final VisionPacket request = new VisionPacket();
+	private final VisionPacket newest = new VisionPacket();
+	private final VisionPacket response = new VisionPacket();
+	
+	/**
+	 * Where the newest measurement came from, only used by the socket thread
+	 */
+	private SocketAddress lastSender = null;
+	
+	public UDPServer() {
+		this(5800);
+	}
+	
+	public UDPServer(int port) {
+		this.port = port;
+	}
+	
+	/**
+	 * Start the UDP socket, retrying with backoff until it is bound. Returns false if
+	 * the thread was interrupted.
+	 */
+	private boolean startSocket() {
+		while (true) {
 			try {
-				Thread.sleep(100);
-			} catch(InterruptedException e) {
-				e.printStackTrace();
+				// Bind the socket to this port on roboRIO-5450-FRC.local 5800-5810
+				serverChannel = DatagramChannel.open();
+				serverChannel.bind(new InetSocketAddress(port));
+				serverChannel.configureBlocking(false);
+				selector = Selector.open();
+				serverChannel.register(selector, SelectionKey.OP_READ);
+				System.out.println("Successfully started UDP Server");
+				return true;
+			} catch (IOException e) {
+				System.out.println("Failed to start UDP Server: " + e.getMessage());
+				health.failed(e.getMessage());
+				UDPServer.this.closeSocket();
+				serverChannel = null;
+				if (!health.backoff()) {
+					return false;
+				}
 			}
-			
-			UDPServer.this.startSocket();
 		}
 	}
 	
-	private void updateSocket() {
-		receiveData = new byte[1024];
-		sendData = new byte[1024];
-		
-		// Receive a packet of bytes from a client
-		String request = "";
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		
+	/**
+	 * Wait for packets and handle them. Returns false if the socket failed and could
+	 * not be bound again because the thread was interrupted.
+	 */
+	private boolean updateSocket() {
+		// Wait for packets without sleeping past their arrival
 		try {
-			serverSocket.setSoTimeout(500);
-		} catch (SocketException e) {
-			e.printStackTrace();
+			selector.select(500);
+			selector.selectedKeys().clear();
+		} catch (IOException e) {
+			// The socket itself failed, bind a new one after a backoff. The selector
+			// is closed by then, so it is only used again once a new one is open.
+			health.failed(e.getMessage());
+			UDPServer.this.closeSocket();
+			return health.backoff() && UDPServer.this.startSocket();
 		}
+		if (poll() > 0) {
+			health.healthy();
+		} else if (System.nanoTime() - snapshot.get().receivedAt > clientTimeoutNanos) {
+			health.failed("no packets from vision client");
+		}
+		return true;
+	}
+	
+	/**
+	 * Drain every pending packet without blocking, keep only the newest measurement,
+	 * and answer its sender with the current vision state
+	 */
+	private int poll() {
+		SocketAddress sender = null;
+		int count = 0;
 		
-		try {
-			serverSocket.receive(receivePacket);
-			request = new String( receivePacket.getData());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return;
+		// Receive packets of bytes from clients until none are left
+		while (true) {
+			SocketAddress from;
+			receiveBuffer.clear();
+			try {
+				from = serverChannel.receive(receiveBuffer);
+			} catch (IOException e) {
+				// Only the first error is logged, a lasting one would flood the log every poll
+				if (failed++ == 0) {
+					System.out.println("Error receiving vision packet: " + e.getMessage());
+				}
+				break;
+			}
+			if (from == null) {
+				break;
+			}
+			received++;
+			
+			// Decode the measurement from the byte packet
+			receiveBuffer.flip();
+			if (!request.read(receiveBuffer)) {
+				System.out.println("Ignoring malformed packet from " + from);
+				continue;
+			}
+		
+			// Drop packets that arrive after a newer one. A client that restarted sends
+			// from a new port, or after a pause, and starts its sequence over.
+			VisionSnapshot latest = snapshot.get();
+			long last = count > 0 ? newest.sequence : latest.sequence;
+			boolean restarted = !from.equals(lastSender) || System.nanoTime() - latest.receivedAt > clientTimeoutNanos;
+			if (request.sequence <= last && !restarted) {
+				stale++;
+				continue;
+			}
+			if (count > 0) {
+				dropped++;
+			}
+			copy(request, newest);
+			sender = from;
+			lastSender = from;
+			count++;
 		}
 		
-		// Extract text from the byte packet
-        handleRequest(request);
-        
-        // Send a message back to the client
-        String response = "";
-        if (getVisionState() == VisionState.Boiler) {
-        	response = "3";
-        } else if (getVisionState() == VisionState.Gear) {
-        	response = "2";
-        } else if (getVisionState() == VisionState.Idle) {
-        	response = "1";
-        } else if (getVisionState() == VisionState.Disabled) {
-        	response = "0";
-        }
-        sendData = response.getBytes();
-        
-        // Open a connection to an ip address
-        InetAddress IPAddress = receivePacket.getAddress();
-        int port = receivePacket.getPort();
-        
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-        
-        try {
-			serverSocket.send(sendPacket);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (count > 0) {
+			publish(newest);
+			respond(sender);
 		}
+		return count;
+	}
+	
+	private static void copy(VisionPacket from, VisionPacket to) {
+		to.state = from.state;
+		to.flags = from.flags;
+		to.sequence = from.sequence;
+		to.timestamp = from.timestamp;
+		to.latency = from.latency;
+		to.angle = from.angle;
+		to.score = from.score;
+		to.rate = from.rate;
+	}
+	
+	/**
+	 * Update internal state variables from the newest request
+	 */
+	private void publish(VisionPacket packet) {
+		long now = System.nanoTime();
+		boolean found = packet.hasFlag(VisionPacket.FLAG_TARGET_FOUND);
+		VisionSnapshot current;
+		VisionSnapshot next;
+		do {
+			current = snapshot.get();
+			next = new VisionSnapshot(current.state, found, found ? packet.angle : current.angle, found ? packet.rate : 0.0,
+				packet.score, packet.sequence, packet.timestamp, packet.latency, now);
+		} while (!snapshot.compareAndSet(current, next));
+	}
+	
+	/**
+	 * Send the vision state back to the client
+	 */
+	private void respond(SocketAddress address) {
+		boolean record = recordRequested;
+		VisionSnapshot latest = snapshot.get();
+		response.state = latest.state;
+		response.flags = record ? VisionPacket.FLAG_RECORD : 0;
+		response.sequence = latest.sequence;
+		response.timestamp = latest.timestamp;
+		response.write(sendBuffer);
 		
 		try {
-			Thread.sleep(500);
-		} catch(InterruptedException e) {
-			e.printStackTrace();
+			if (serverChannel.send(sendBuffer, address) > 0 && record) {
+				recordRequested = false;
+			}
+		} catch (IOException e) {
+			if (failed++ == 0) {
+				System.out.println("Error sending vision state to " + address + ": " + e.getMessage());
+			}
 		}
 	}
 	
 	private void closeSocket() {
-		serverSocket.close();
-	}
-	
-	private void handleRequest(String request) {
-		// Update internal state variables depending on the request
-		int index = request.indexOf('!');
-		String buffer = request.substring(0, index);
-		double a = 0.0;
 		try {
-			a = Double.parseDouble(buffer);
-		} catch(NumberFormatException e){
+			if (selector != null) {
+				selector.close();
+			}
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
-			a = getAngle();
 		}
-		setAngle(a);
 	}
 	
-	public synchronized void setVisionState(VisionState s) {
-		state = s;
+	public void setVisionState(VisionState s) {
+		VisionSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withState(s.ordinal())));
+	}
+	
+	public VisionState getVisionState() {
+		return STATES[snapshot.get().state];
 	}
 	
-	public synchronized VisionState getVisionState() {
-		return state;
+	/**
+	 * The latest measurement and vision state, all from the same update
+	 */
+	public VisionSnapshot getSnapshot() {
+		return snapshot.get();
 	}
 	
-	public synchronized void setAngle(double _a) {
-		angle = _a;
+	/**
+	 * Ask the vision client to save its flight recorder with the next response
+	 */
+	public void requestRecording() {
+		recordRequested = true;
+	}
+	
+	/**
+	 * Copy the latest measurement into the given packet without blocking the socket thread.
+	 * All fields come from the same packet. Returns the packet for convenience.
+	 */
+	public VisionPacket getLatest(VisionPacket out) {
+		VisionSnapshot latest = snapshot.get();
+		out.state = latest.state;
+		out.flags = latest.targetFound ? VisionPacket.FLAG_TARGET_FOUND : 0;
+		out.sequence = latest.sequence;
+		out.timestamp = latest.timestamp;
+		out.latency = latest.latency;
+		out.angle = latest.angle;
+		out.score = latest.score;
+		out.rate = latest.rate;
+		return out;
 	}
 	
-	public synchronized double getAngle() {
-		return angle;
+	public double getAngle() {
+		return snapshot.get().angle;
+	}
+	
+	/**
+	 * Whether the latest packet reported a target
+	 */
+	public boolean isTargetFound() {
+		return snapshot.get().targetFound;
+	}
+	
+	public double getScore() {
+		return snapshot.get().score;
+	}
+	
+	/**
+	 * The rate the angle is changing, in degrees per second
+	 */
+	public double getRate() {
+		return snapshot.get().rate;
+	}
+	
+	/**
+	 * The angle extrapolated from the latest packet to now, at its reported rate.
+	 * This makes up for the time the packet spent in the network and waiting to be read.
+	 */
+	public double getPredictedAngle() {
+		VisionSnapshot latest = snapshot.get();
+		return latest.receivedAt == 0 ? latest.angle :
+			latest.angle + latest.rate * Math.min(System.nanoTime() - latest.receivedAt, maxPredictionNanos) / 1e9;
+	}
+	
+	public long getSequence() {
+		return snapshot.get().sequence;
+	}
+	
+	/**
+	 * The capture time of the latest measurement, on the vision client's System.nanoTime() clock
+	 */
+	public long getTimestamp() {
+		return snapshot.get().timestamp;
+	}
+	
+	/**
+	 * Nanoseconds between frame capture and the latest packet leaving the vision client
+	 */
+	public long getLatency() {
+		return snapshot.get().latency;
+	}
+	
+	/**
+	 * Nanoseconds since the frame behind the latest measurement was captured,
+	 * estimated from the client's reported latency plus the time since it arrived.
+	 * Network transit time is not included.
+	 */
+	public long getAge() {
+		VisionSnapshot latest = snapshot.get();
+		return latest.receivedAt == 0 ? Long.MAX_VALUE : System.nanoTime() - latest.receivedAt + latest.latency;
+	}
+	
+	/**
+	 * The number of packets received, including malformed and dropped ones
+	 */
+	public long getReceivedCount() {
+		return received;
+	}
+	
+	/**
+	 * The number of packets superseded by a newer one in the same poll
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+	
+	/**
+	 * The number of packets dropped for arriving out of order
+	 */
+	public long getStaleCount() {
+		return stale;
+	}
+	
+	/**
+	 * The number of errors receiving packets and sending responses, of which only the first is logged
+	 */
+	public long getFailedCount() {
+		return failed;
 	}
 	
 	public boolean isConnected() {
-		return serverSocket != null;
+		return serverChannel != null;
+	}
+	
+	/**
+	 * Whether the vision client is reporting, and how long it took to come back after it stopped
+	 */
+	public Supervisor.Resource getHealth() {
+		return health;
 	}
 
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-		UDPServer.this.startSocket();
+		// Enter the Idle state before the socket opens, so a state set once the server
+		// is connected is not overwritten
+		setVisionState(VisionState.Idle);
+		if (!UDPServer.this.startSocket()) {
+			return;
+		}
 		while (getVisionState() != VisionState.Disabled) {
-			UDPServer.this.updateSocket();
+			if (!UDPServer.this.updateSocket()) {
+				return;
+			}
 		}
 		UDPServer.this.closeSocket();
 	}
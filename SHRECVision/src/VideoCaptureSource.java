@@ -0,0 +1,94 @@
+import org.opencv.core.*;
+import org.opencv.videoio.*;
+
+/**
+ * Frames from an OpenCV VideoCapture, which reads both the MJPEG streams of the
+ * Axis IP cameras and local video files
+ */
+public class VideoCaptureSource implements FrameSource {
+
+	private final String url;
+	private VideoCapture capture = new VideoCapture();
+	private long start = 0;
+	private long frameTime = 0;
+	private long decodeTime = 0;
+	private long captureTime = 0;
+
+	public VideoCaptureSource(String url) {
+		this.url = url;
+	}
+
+	@Override
+	public boolean open() {
+		capture.release();
+		capture = new VideoCapture(url);
+		start = 0;
+		return capture.isOpened();
+	}
+
+	@Override
+	public boolean isOpened() {
+		return capture.isOpened();
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		/**
+		 * Wait for the frame, then decode it, so the decode can be timed on its own.
+		 * VideoCapture does not say when the frame began to arrive, so it is stamped
+		 * when grab() returns with it. The wait for the camera is not counted in its
+		 * age, the decode is.
+		 */
+		if (!capture.grab()) {
+			return false;
+		}
+		long before = System.nanoTime();
+		boolean retrieved = capture.retrieve(frame);
+		decodeTime = System.nanoTime() - before;
+		if (!retrieved) {
+			return false;
+		}
+		captureTime = before;
+
+		/**
+		 * Files report the position of each frame, live streams only have the clock
+		 */
+		double position = capture.get(Videoio.CAP_PROP_POS_MSEC);
+		long now = System.nanoTime();
+		if (start == 0) {
+			start = now;
+		}
+		frameTime = position > 0 ? (long)(position * 1000000.0) : now - start;
+		return true;
+	}
+
+	@Override
+	public boolean grab() {
+		return capture.grab();
+	}
+
+	@Override
+	public long getFrameTime() {
+		return frameTime;
+	}
+
+	@Override
+	public long getDecodeTime() {
+		return decodeTime;
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void release() {
+		capture.release();
+	}
+
+	@Override
+	public String getName() {
+		return url.replaceAll("//[^@/]*@", "//");
+	}
+}
@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed-layout binary packet exchanged between the vision client and the
+ * UDP server on the RoboRIO. The same packet is used in both directions: the
+ * client fills in its measurement, and the server answers with the vision
+ * state it wants. Instances are mutable so each side can reuse one for every
+ * packet it sends or receives.
+ *
+ * Layout, big-endian:
+ *   0  byte   protocol version
+ *   1  byte   vision state ordinal
+ *   2  short  flags
+ *   4  long   sequence number
+ *   12 long   capture timestamp, System.nanoTime() of the sender
+ *   20 long   processing latency in nanoseconds
+ *   28 double incidence angle in degrees, extrapolated to the time the packet was sent
+ *   36 double contour score
+ *   44 double rate of change of the angle in degrees per second
+ */
+public class VisionPacket {
+
+	public static final byte VERSION = 2;
+	public static final int SIZE = 52;
+
+	/**
+	 * A target was found in the frame this packet describes
+	 */
+	public static final int FLAG_TARGET_FOUND = 1;
+
+	/**
+	 * The server asks for the vision flight recorder to be saved
+	 */
+	public static final int FLAG_RECORD = 2;
+
+	public int state;
+	public int flags;
+	public long sequence;
+	public long timestamp;
+	public long latency;
+	public double angle;
+	public double score;
+	public double rate;
+
+	public boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Encode this packet at the start of the buffer, leaving the buffer ready to be sent
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.clear();
+		buffer.put(VERSION);
+		buffer.put((byte)state);
+		buffer.putShort((short)flags);
+		buffer.putLong(sequence);
+		buffer.putLong(timestamp);
+		buffer.putLong(latency);
+		buffer.putDouble(angle);
+		buffer.putDouble(score);
+		buffer.putDouble(rate);
+		buffer.flip();
+	}
+
+	/**
+	 * Decode a packet from the buffer's current position. Returns false and leaves
+	 * this packet unchanged if the buffer is too short or from another protocol version.
+	 */
+	public boolean read(ByteBuffer buffer) {
+		if (buffer.remaining() < SIZE || buffer.get(buffer.position()) != VERSION) {
+			return false;
+		}
+		buffer.get();
+		state = buffer.get() & 0xff;
+		flags = buffer.getShort() & 0xffff;
+		sequence = buffer.getLong();
+		timestamp = buffer.getLong();
+		latency = buffer.getLong();
+		angle = buffer.getDouble();
+		score = buffer.getDouble();
+		rate = buffer.getDouble();
+		return true;
+	}
+}
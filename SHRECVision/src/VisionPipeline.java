@@ -0,0 +1,476 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The frame processing for one vision target. It thresholds a frame, finds the
+ * reflective tape, and calculates the horizontal incidence angle of the target.
+ * Each stage is a separate method so it can be timed and benchmarked on its own,
+ * and all buffers live in a VisionWorkspace that is reused between frames.
+ *
+ * While the target is being tracked, only a window around its predicted position
+ * is processed, see RoiTracker. If the target is not in the window, the same frame
+ * is searched again in full.
+ *
+ * With pyramid_scale above 1, a search without a window first looks for tape in
+ * a copy of the frame shrunk by that factor. Only the window around the largest
+ * candidates found there, on the grid of roi_grid pixels, is then processed at
+ * full resolution, which keeps the tape edges used for the angle calculation
+ * exact. If the shrunk frame does not hold at least two candidates, the frame is
+ * reported as not found.
+ *
+ * With threshold_mode=lut, the HSV conversion and threshold are replaced by a
+ * single pass through a ColorLut. Until the table for the current thresholds has
+ * been built, frames are processed the usual way.
+ *
+ * With parallel_strips above 1, whole frames are thresholded and filtered in that
+ * many strips on the free vision cores, see StripProcessor. Windows are processed serially.
+ *
+ * Blobs are measured as connected components, and the tape is picked by a
+ * TapePairSelector that scores pairs against the target geometry. With
+ * detector=contours, blobs are measured as contours instead, and the two largest
+ * well filled ones are taken. The Java binding makes a point list for every
+ * contour, so only connected components are measured without making garbage.
+ *
+ * A pipeline is not thread safe, each thread must use its own.
+ */
+public class VisionPipeline {
+
+	/**
+	 * A pixel cluster size. Any clusters smaller are considered noise and will be removed.
+	 */
+	private static final Mat element = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
+
+	/**
+	 * The noise filter for a frame shrunk by half. Further shrunk frames are not filtered,
+	 * since even this element would be larger than the thinnest tape, and the noise left
+	 * in the window is removed at full resolution anyway.
+	 */
+	private static final Mat coarseElement = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(3, 3));
+
+	/**
+	 * The most candidates from the shrunk frame that are refined at full resolution
+	 */
+	private static final int coarseCandidates = 4;
+
+	private final UDPClient.VisionState target;
+	private final VisionWorkspace ws = new VisionWorkspace();
+	private final VisionStats.Pipeline timings;
+	private final RoiTracker tracker = new RoiTracker();
+	private final StripProcessor strips = new StripProcessor();
+	private final TapePairSelector selector;
+
+	/**
+	 * Buffers for the search in the shrunk frame
+	 */
+	private final VisionWorkspace coarse = new VisionWorkspace();
+	private final Mat small = new Mat();
+	private final Size smallSize = new Size();
+	private final Rect coarseWindow = new Rect();
+	private final int[] candidates = new int[coarseCandidates];
+
+	/**
+	 * The result of the latest frame
+	 */
+	private int contours = 0;
+	private int index1 = -1;
+	private int index2 = -1;
+	private double angle = 0.0;
+	private double score = 0.0;
+
+	public VisionPipeline(UDPClient.VisionState target, VisionStats.Pipeline timings) {
+		this.target = target;
+		this.timings = timings;
+		this.selector = new TapePairSelector(target);
+	}
+
+	/**
+	 * Process a frame with the given preferences. Returns true if the target was found.
+	 */
+	public boolean process(Mat frame, VisionPrefs p) {
+		long start = System.nanoTime();
+
+		/**
+		 * Search the predicted window first, then the whole frame
+		 */
+		Rect roi = p.getBoolean("roi_enabled", true) ? tracker.predict(frame.cols(), frame.rows(), p) : null;
+		boolean found = roi != null && detect(frame, roi, p);
+		if (!found) {
+			int scale = p.getInt("pyramid_scale", 1);
+			if (scale > 1) {
+				/**
+				 * Narrow the search down in a shrunk copy of the frame
+				 */
+				long time = System.nanoTime();
+				int count = coarseSearch(frame, p, scale);
+				lap(VisionStats.Stage.Coarse, time);
+				if (count >= 2) {
+					found = detect(frame, coarseWindow.width > 0 ? coarseWindow : null, p);
+				} else {
+					ws.clearMask(frame.rows(), frame.cols());
+					contours = count;
+				}
+			} else {
+				found = detect(frame, null, p);
+			}
+		}
+
+		if (found) {
+			tracker.found(
+				Math.min(ws.getLeft(index1), ws.getLeft(index2)), Math.min(ws.getTop(index1), ws.getTop(index2)),
+				Math.max(ws.getRight(index1), ws.getRight(index2)), Math.max(ws.getBottom(index1), ws.getBottom(index2)));
+		} else {
+			tracker.lost();
+		}
+
+		timings.record(VisionStats.Stage.Total, System.nanoTime() - start);
+		return found;
+	}
+
+	/**
+	 * Run every stage over a region of the frame, or the whole frame if it is null
+	 */
+	private boolean detect(Mat frame, Rect roi, VisionPrefs p) {
+		long time = System.nanoTime();
+		ws.setRegion(roi);
+
+		ColorLut lut = lut(p);
+		int count = p.getInt("parallel_strips", 1);
+		if (count > 1 && roi == null) {
+			/**
+			 * Threshold and remove noise in strips of the frame in parallel
+			 */
+			strips.threshold(frame, ws, p, lut, count);
+			time = lap(VisionStats.Stage.Threshold, time);
+			strips.morphology(element);
+			time = lap(VisionStats.Stage.Morphology, time);
+		} else if (lut != null) {
+			/**
+			 * Threshold the colors straight from the frame
+			 */
+			segment(frame, lut);
+			time = lap(VisionStats.Stage.Threshold, time);
+			morphology();
+			time = lap(VisionStats.Stage.Morphology, time);
+		} else {
+			/**
+			 * First, convert the image to the HSV color space
+			 */
+			convert(frame);
+			time = lap(VisionStats.Stage.Convert, time);
+
+			/**
+			 * Second, apply an HSV color threshold
+			 */
+			threshold(p);
+			time = lap(VisionStats.Stage.Threshold, time);
+
+			/**
+			 * Remove noise from the frame
+			 */
+			morphology();
+			time = lap(VisionStats.Stage.Morphology, time);
+		}
+
+		/**
+		 * List found contours in no specified order, and measure each of them once
+		 */
+		boolean components = components(p);
+		if (components) {
+			findComponents();
+		} else {
+			findContours();
+		}
+		time = lap(VisionStats.Stage.Contours, time);
+
+		/**
+		 * Select the tape and calculate the angle
+		 */
+		boolean found = components ? selectPair(p) : select(p);
+		lap(VisionStats.Stage.Selection, time);
+		return found;
+	}
+
+	/**
+	 * Find tape candidates in the frame shrunk by the given factor, and set the
+	 * window around the largest of them, or an empty window for the whole frame.
+	 * Returns the number of candidates.
+	 */
+	private int coarseSearch(Mat frame, VisionPrefs p, int scale) {
+		smallSize.width = frame.cols() / scale;
+		smallSize.height = frame.rows() / scale;
+		Imgproc.resize(frame, small, smallSize, 0, 0, Imgproc.INTER_AREA);
+		ColorLut lut = lut(p);
+		if (lut != null) {
+			int size = small.rows() * small.cols();
+			coarse.mask.create(small.rows(), small.cols(), CvType.CV_8UC1);
+			lut.apply(small, coarse.mask, coarse.getPixelBuffer(size * 3), coarse.getMaskBuffer(size));
+		} else {
+			Imgproc.cvtColor(small, coarse.hsv, Imgproc.COLOR_BGR2HSV);
+			Core.inRange(coarse.hsv, p.thd_color_low, p.thd_color_high, coarse.mask);
+		}
+		if (scale == 2) {
+			Imgproc.morphologyEx(coarse.mask, coarse.mask, Imgproc.MORPH_OPEN, coarseElement);
+		}
+		int found = components(p) ? coarse.findComponents() : coarse.findContours();
+
+		/**
+		 * Keep the largest candidates that could be tape at full resolution
+		 */
+		double squared = scale * scale;
+		int count = 0;
+		for (int i = 0; i < found; i++) {
+			double area = coarse.getWidth(i) * coarse.getHeight(i) * squared;
+			if (area <= p.min_area || coarse.getArea(i) * squared >= p.max_area) {
+				continue;
+			}
+			int slot = count;
+			while (slot > 0 && coarse.getArea(candidates[slot - 1]) < coarse.getArea(i)) {
+				if (slot < coarseCandidates) {
+					candidates[slot] = candidates[slot - 1];
+				}
+				slot--;
+			}
+			if (slot < coarseCandidates) {
+				candidates[slot] = i;
+			}
+			count = Math.min(count + 1, coarseCandidates);
+		}
+		if (count < 2) {
+			return count;
+		}
+
+		/**
+		 * Scale the box around the candidates back up, with a margin for the lost detail
+		 */
+		int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = 0, bottom = 0;
+		for (int i = 0; i < count; i++) {
+			left = Math.min(left, coarse.getLeft(candidates[i]));
+			top = Math.min(top, coarse.getTop(candidates[i]));
+			right = Math.max(right, coarse.getRight(candidates[i]));
+			bottom = Math.max(bottom, coarse.getBottom(candidates[i]));
+		}
+		int margin = 2 * scale + 4;
+		RoiTracker.snap(coarseWindow, left * scale - margin, top * scale - margin, right * scale + margin, bottom * scale + margin,
+			frame.cols(), frame.rows(), p.getInt("roi_grid", 16));
+		if ((double)coarseWindow.width * coarseWindow.height > 0.6 * frame.cols() * frame.rows()) {
+			coarseWindow.width = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Process strips under the given cores, which the processing thread holds one of, see StripProcessor
+	 */
+	public void setCores(Semaphore cores) {
+		strips.setCores(cores);
+	}
+
+	/**
+	 * Limit the stages to a region of the frame, or the whole frame if null
+	 */
+	public void setRegion(Rect roi) {
+		ws.setRegion(roi);
+	}
+
+	public void convert(Mat frame) {
+		ws.hsv.create(frame.rows(), frame.cols(), CvType.CV_8UC3);
+		Imgproc.cvtColor(ws.view(frame), ws.view(ws.hsv), Imgproc.COLOR_BGR2HSV);
+	}
+
+	public void threshold(VisionPrefs p) {
+		/**
+		 * Clear the mask outside the region, so it is not mistaken for tape
+		 */
+		ws.prepareMask(ws.hsv.rows(), ws.hsv.cols());
+		Core.inRange(ws.view(ws.hsv), p.thd_color_low, p.thd_color_high, ws.view(ws.mask));
+	}
+
+	/**
+	 * Threshold the frame through a color table, in place of convert() and threshold()
+	 */
+	public void segment(Mat frame, ColorLut lut) {
+		ws.prepareMask(frame.rows(), frame.cols());
+		Mat source = ws.view(frame);
+		int size = source.rows() * source.cols();
+		lut.apply(source, ws.view(ws.mask), ws.getPixelBuffer(size * 3), ws.getMaskBuffer(size));
+	}
+
+	/**
+	 * The color table to threshold with, or null to convert to HSV and threshold that
+	 */
+	private static ColorLut lut(VisionPrefs p) {
+		return p.getString("threshold_mode", "hsv").equals("lut") ? ColorLut.get(p) : null;
+	}
+
+	public void morphology() {
+		Mat target = ws.view(ws.mask);
+		Imgproc.morphologyEx(target, target, Imgproc.MORPH_OPEN, element);
+	}
+
+	public int findContours() {
+		contours = ws.findContours();
+		return contours;
+	}
+
+	/**
+	 * Measure the blobs of the mask as connected components, in place of findContours()
+	 */
+	public int findComponents() {
+		contours = ws.findComponents();
+		return contours;
+	}
+
+	private static boolean components(VisionPrefs p) {
+		return p.getString("detector", "components").equals("components");
+	}
+
+	/**
+	 * Select the pair of blobs that best matches the target geometry, in place of select()
+	 */
+	public boolean selectPair(VisionPrefs p) {
+		boolean found = selector.select(ws, p);
+		index1 = selector.getIndex1();
+		index2 = selector.getIndex2();
+		score = selector.getScore();
+		if (found) {
+			angle = angle(p);
+		}
+		return found;
+	}
+
+	/**
+	 * Select the two largest contours and calculate the incidence angle between them
+	 */
+	public boolean select(VisionPrefs p) {
+		index1 = -1;
+		index2 = -1;
+		score = 0.0;
+
+		/**
+		 * Select the largest two contours that fill at least pair_min_fill of their
+		 * bounding boxes. They are ranked by area alone, so which two are kept does
+		 * not depend on the order the contours were found in.
+		 */
+		double minFill = p.getDouble("pair_min_fill", 0.5);
+		double referenced_concavity1 = 0;
+		double referenced_concavity2 = 0;
+		double referenced_area1 = 0;
+		double referenced_area2 = 0;
+		for (int i = 0; i < contours; i++) {
+			double area = ws.getArea(i);
+			double concavity = area / ((double)ws.getWidth(i) * ws.getHeight(i));
+			if ((area <= p.min_area) || (area >= p.max_area) || (concavity < minFill)) {
+				continue;
+			}
+			if (area > referenced_area1) {
+				referenced_concavity2 = referenced_concavity1;
+				referenced_concavity1 = concavity;
+				referenced_area2 = referenced_area1;
+				referenced_area1 = area;
+				index2 = index1;
+				index1 = i;
+			} else if (area > referenced_area2) {
+				referenced_concavity2 = concavity;
+				referenced_area2 = area;
+				index2 = i;
+			}
+		}
+
+		if (index1 == -1 || index2 == -1) {
+			return false;
+		}
+
+		angle = angle(p);
+		score = (referenced_concavity1 + referenced_concavity2) / 2.0;
+		return true;
+	}
+
+	/**
+	 * Locate the reflective tape between the two selected blobs. The mask always has
+	 * the size of the whole frame, which is smaller than the camera's when frames are
+	 * decoded at a reduced size. The field of view is the camera's camera_horizontal_fov.
+	 */
+	private double angle(VisionPrefs p) {
+		double frameWidth = ws.mask.cols();
+		double fov = p.getDouble("camera_horizontal_fov", SHRECVision.camera_horizontal_fov);
+		if (target == UDPClient.VisionState.Boiler) {
+			/**
+			 * The robot is facing the boiler
+			 * Update the horizontal incedence angle
+			 */
+			return fov * (((ws.getCenterX(index1) + ws.getCenterX(index2)) / frameWidth) - 1.0) / 2.0;
+		} else if (target == UDPClient.VisionState.Gear) {
+			/**
+			 * The robot is facing the gear hook
+			 * Update the horizontal incedence angle
+			 */
+			return fov * (((ws.getCenterX(index1) + ws.getCenterX(index2)) / frameWidth) - 1.0) / 2.0;
+		}
+		return angle;
+	}
+
+	/**
+	 * Record the time since the previous stage finished, and return the current time
+	 */
+	private long lap(VisionStats.Stage stage, long since) {
+		long now = System.nanoTime();
+		timings.record(stage, now - since);
+		return now;
+	}
+
+	public UDPClient.VisionState getTarget() {
+		return target;
+	}
+
+	/**
+	 * The filtered binary image of the latest frame
+	 */
+	public Mat getMask() {
+		return ws.mask;
+	}
+
+	public VisionWorkspace getWorkspace() {
+		return ws;
+	}
+
+	/**
+	 * The number of contours in the latest frame
+	 */
+	public int getContourCount() {
+		return contours;
+	}
+
+	/**
+	 * The indices in the workspace of the two selected contours, or -1
+	 */
+	public int getIndex1() {
+		return index1;
+	}
+
+	public int getIndex2() {
+		return index2;
+	}
+
+	/**
+	 * The incidence angle of the latest target found, in degrees
+	 */
+	public double getAngle() {
+		return angle;
+	}
+
+	/**
+	 * The mean fill ratio of the two selected contours, or the pair score with detector=components
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	public void release() {
+		ws.release();
+		coarse.release();
+		small.release();
+		strips.release();
+	}
+}
@@ -0,0 +1,244 @@
+import org.opencv.core.Scalar;
+
+import java.util.*;
+
+/**
+ * An immutable, validated snapshot of the vision tuning preferences.
+ *
+ * The first eight lines of the preferences file keep their original positional
+ * meaning (HSV minimum, HSV maximum, minimum area, maximum area). Any further
+ * lines are optional "key=value" tunables, and blank lines or lines starting
+ * with '#' are ignored.
+ *
+ * Instances are only ever published whole, so a reader always sees thresholds
+ * that were loaded together. The Scalar fields are shared between readers and
+ * must not be modified.
+ */
+public final class VisionPrefs {
+
+	/**
+	 * The preferences used before a file has been loaded successfully
+	 */
+	public static final VisionPrefs DEFAULT = new VisionPrefs(
+		new int[] {0, 0, 0}, new int[] {255, 255, 255}, 0.0, 1000000.0, Collections.<String, String>emptyMap());
+
+	/**
+	 * These thresholds are clipping points for the Core.inRange() function.
+	 * Any color within this range will show as white in the filtered image.
+	 */
+	public final Scalar thd_color_low;
+	public final Scalar thd_color_high;
+
+	/**
+	 * Thresholds for contour area. These ensure that a countour that is too small
+	 * or too large is rejected.
+	 */
+	public final double min_area;
+	public final double max_area;
+
+	/**
+	 * The raw HSV bounds, kept for consumers that need them as integers
+	 */
+	private final int[] min;
+	private final int[] max;
+
+	/**
+	 * Optional named tunables following the positional values
+	 */
+	private final Map<String, String> extras;
+
+	/**
+	 * The tunables that are numbers, parsed once here since parsing a double makes
+	 * garbage and some are read on every frame
+	 */
+	private final Map<String, Double> numbers;
+
+	private VisionPrefs(int[] min, int[] max, double min_area, double max_area, Map<String, String> extras) {
+		this.min = min.clone();
+		this.max = max.clone();
+		this.thd_color_low = new Scalar(min[0], min[1], min[2]);
+		this.thd_color_high = new Scalar(max[0], max[1], max[2]);
+		this.min_area = min_area;
+		this.max_area = max_area;
+		this.extras = Collections.unmodifiableMap(new HashMap<String, String>(extras));
+		Map<String, Double> parsed = new HashMap<String, Double>();
+		for (Map.Entry<String, String> extra : extras.entrySet()) {
+			try {
+				parsed.put(extra.getKey(), Double.valueOf(extra.getValue()));
+			} catch (NumberFormatException e) {
+				/**
+				 * Not a number, reported if it is read as one
+				 */
+			}
+		}
+		this.numbers = Collections.unmodifiableMap(parsed);
+	}
+
+	/**
+	 * Parse and validate the lines of a preferences file
+	 */
+	public static VisionPrefs parse(List<String> lines) {
+		int[] min = new int[3];
+		int[] max = new int[3];
+		double[] area = new double[2];
+		Map<String, String> extras = new HashMap<String, String>();
+
+		int i = 0;
+		for (String raw : lines) {
+			String line = raw.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			try {
+				if (i < 3) {
+					min[i] = Integer.parseInt(line);
+				} else if (i < 6) {
+					max[i - 3] = Integer.parseInt(line);
+				} else if (i < 8) {
+					area[i - 6] = Double.parseDouble(line);
+				} else {
+					int split = line.indexOf('=');
+					if (split <= 0) {
+						throw new IllegalArgumentException("Expected key=value: " + line);
+					}
+					extras.put(line.substring(0, split).trim(), line.substring(split + 1).trim());
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid number on preference " + i + ": " + line, e);
+			}
+			i++;
+		}
+
+		if (i < 8) {
+			throw new IllegalArgumentException("Expected at least 8 preferences, found " + i);
+		}
+		validate(min, max, area[0], area[1]);
+
+		return new VisionPrefs(min, max, area[0], area[1], extras);
+	}
+
+	private static void validate(int[] min, int[] max, double min_area, double max_area) {
+		for (int c = 0; c < 3; c++) {
+			if (min[c] < 0 || max[c] > 255 || min[c] > max[c]) {
+				throw new IllegalArgumentException("Invalid HSV range on channel " + c + ": " + min[c] + " to " + max[c]);
+			}
+		}
+		if (min_area < 0.0 || min_area >= max_area) {
+			throw new IllegalArgumentException("Invalid area range: " + min_area + " to " + max_area);
+		}
+	}
+
+	/**
+	 * The HSV lower bound of a channel
+	 */
+	public int getMin(int channel) {
+		return min[channel];
+	}
+
+	/**
+	 * The HSV upper bound of a channel
+	 */
+	public int getMax(int channel) {
+		return max[channel];
+	}
+
+	/**
+	 * Look up an optional tunable, falling back to a default when it is absent
+	 */
+	public String getString(String key, String fallback) {
+		String value = extras.get(key);
+		return value != null ? value : fallback;
+	}
+
+	public int getInt(String key, int fallback) {
+		String value = extras.get(key);
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid integer for " + key + ": " + value);
+			return fallback;
+		}
+	}
+
+	public double getDouble(String key, double fallback) {
+		Double number = numbers.get(key);
+		if (number != null) {
+			return number;
+		}
+		String value = extras.get(key);
+		if (value != null) {
+			System.out.println("Invalid number for " + key + ": " + value);
+		}
+		return fallback;
+	}
+
+	public boolean getBoolean(String key, boolean fallback) {
+		String value = extras.get(key);
+		return value != null ? Boolean.parseBoolean(value) : fallback;
+	}
+
+	/**
+	 * A copy of these preferences with one tunable replaced
+	 */
+	public VisionPrefs with(String key, String value) {
+		Map<String, String> copy = new HashMap<String, String>(extras);
+		copy.put(key, value);
+		return new VisionPrefs(min, max, min_area, max_area, copy);
+	}
+
+	/**
+	 * A copy of these preferences with the positional values replaced, validated as in parse()
+	 */
+	public VisionPrefs withThresholds(int[] newMin, int[] newMax, double newMinArea, double newMaxArea) {
+		validate(newMin, newMax, newMinArea, newMaxArea);
+		return new VisionPrefs(newMin, newMax, newMinArea, newMaxArea, extras);
+	}
+
+	/**
+	 * The preferences of one camera: a copy of these with every camera_<name>_<key>
+	 * tunable replacing <key>. The positional values are replaced by camera_<name>_hsv_min
+	 * and camera_<name>_hsv_max (three comma separated values each), camera_<name>_min_area
+	 * and camera_<name>_max_area, validated as in parse().
+	 */
+	public VisionPrefs forCamera(String name) {
+		String prefix = "camera_" + name + "_";
+		Map<String, String> copy = new HashMap<String, String>(extras);
+		for (Map.Entry<String, String> e : extras.entrySet()) {
+			if (e.getKey().startsWith(prefix)) {
+				copy.put(e.getKey().substring(prefix.length()), e.getValue());
+			}
+		}
+
+		try {
+			int[] newMin = copy.containsKey("hsv_min") ? triple(copy.remove("hsv_min")) : min;
+			int[] newMax = copy.containsKey("hsv_max") ? triple(copy.remove("hsv_max")) : max;
+			double newMinArea = copy.containsKey("min_area") ? Double.parseDouble(copy.remove("min_area")) : min_area;
+			double newMaxArea = copy.containsKey("max_area") ? Double.parseDouble(copy.remove("max_area")) : max_area;
+			validate(newMin, newMax, newMinArea, newMaxArea);
+			return new VisionPrefs(newMin, newMax, newMinArea, newMaxArea, copy);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid threshold for camera " + name, e);
+		}
+	}
+
+	private static int[] triple(String value) {
+		String[] parts = value.split(",");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("Expected three comma separated values: " + value);
+		}
+		int[] channels = new int[3];
+		for (int c = 0; c < 3; c++) {
+			channels[c] = Integer.parseInt(parts[c].trim());
+		}
+		return channels;
+	}
+
+	@Override
+	public String toString() {
+		return "HSV " + Arrays.toString(min) + " to " + Arrays.toString(max) + ", area " + min_area + " to " + max_area + ", " + extras;
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * One consistent view of the latest vision result and the vision state, shared
+ * between threads without locks.
+ *
+ * A snapshot is never changed once made. Writers build a new one from the current
+ * one and swap it in with AtomicReference.compareAndSet(), retrying if another
+ * writer swapped first; readers take the current one with a single get() and
+ * always see every field from the same update, without waiting for anyone.
+ */
+public final class VisionSnapshot {
+
+	/**
+	 * The ordinal of Idle in both VisionState enums. Like VisionPacket, this class is
+	 * shared with the RoboRIO and does not depend on either side's classes.
+	 */
+	private static final int IDLE = 2;
+
+	/**
+	 * Idle, with no measurement yet
+	 */
+	public static final VisionSnapshot EMPTY = new VisionSnapshot(IDLE, false, 0.0, 0.0, 0.0, 0, 0, 0, 0);
+
+	/**
+	 * The ordinal of the vision state, the same in UDPClient.VisionState and UDPServer.VisionState
+	 */
+	public final int state;
+	public final boolean targetFound;
+
+	/**
+	 * The incidence angle in degrees, and the rate it is changing in degrees per second
+	 */
+	public final double angle;
+	public final double rate;
+
+	/**
+	 * How well the target matched, between 0 and 1
+	 */
+	public final double score;
+
+	/**
+	 * On the vision client, the number of the frame the result came from. On the
+	 * server, the sequence number of the packet it arrived in.
+	 */
+	public final long sequence;
+
+	/**
+	 * The capture time of the frame, on the vision client's System.nanoTime() clock
+	 */
+	public final long timestamp;
+
+	/**
+	 * On the server, the nanoseconds between capture and the packet leaving the client,
+	 * and the server's System.nanoTime() when the packet arrived. Both are 0 on the client.
+	 */
+	public final long latency;
+	public final long receivedAt;
+
+	public VisionSnapshot(int state, boolean targetFound, double angle, double rate, double score,
+			long sequence, long timestamp, long latency, long receivedAt) {
+		this.state = state;
+		this.targetFound = targetFound;
+		this.angle = angle;
+		this.rate = rate;
+		this.score = score;
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.latency = latency;
+		this.receivedAt = receivedAt;
+	}
+
+	/**
+	 * This snapshot in another vision state
+	 */
+	public VisionSnapshot withState(int s) {
+		return s == state ? this : new VisionSnapshot(s, targetFound, angle, rate, score, sequence, timestamp, latency, receivedAt);
+	}
+
+	/**
+	 * The result of the next frame, which found a target. The state is kept.
+	 */
+	public VisionSnapshot withTarget(double a, double r, double s, long t) {
+		return new VisionSnapshot(state, true, a, r, s, sequence + 1, t, 0, 0);
+	}
+
+	/**
+	 * The result of the next frame, which found no target. The last angle is kept,
+	 * but no longer flagged as a target.
+	 */
+	public VisionSnapshot withNoTarget(long t) {
+		return new VisionSnapshot(state, false, angle, 0.0, 0.0, sequence + 1, t, 0, 0);
+	}
+}
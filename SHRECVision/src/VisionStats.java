@@ -0,0 +1,144 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage latency histograms for each camera pipeline. Stages are timed with
+ * System.nanoTime() by the code that runs them and recorded here without locks.
+ * A summary can be printed periodically, and read on demand through the debug server.
+ */
+public class VisionStats implements Runnable {
+
+	/**
+	 * The timed stages of the vision pipeline
+	 */
+	public enum Stage {
+		Capture,
+		Coarse,
+		Convert,
+		Threshold,
+		Morphology,
+		Contours,
+		Selection,
+		Publish,
+		Total
+	}
+
+	/**
+	 * Frame scheduling outcomes, counted per camera. Dropped frames were replaced in
+	 * the FrameMailbox by a newer one before the processing thread took them.
+	 */
+	public enum Event {
+		Processed,
+		Stale,
+		Late,
+		Dropped
+	}
+
+	/**
+	 * The histograms and event counts of one camera, indexed by stage and event
+	 */
+	public static class Pipeline {
+		private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+		private final AtomicLongArray events = new AtomicLongArray(Event.values().length);
+
+		private Pipeline() {
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = new LatencyHistogram();
+			}
+		}
+
+		public void record(Stage stage, long nanos) {
+			stages[stage.ordinal()].record(nanos);
+		}
+
+		public LatencyHistogram get(Stage stage) {
+			return stages[stage.ordinal()];
+		}
+
+		public void count(Event event) {
+			events.incrementAndGet(event.ordinal());
+		}
+
+		public long getCount(Event event) {
+			return events.get(event.ordinal());
+		}
+	}
+
+	private final ConcurrentMap<String, Pipeline> pipelines = new ConcurrentSkipListMap<String, Pipeline>();
+	private final long periodMsec;
+
+	/**
+	 * Print and reset the statistics with the given period, or never if it is zero
+	 */
+	public VisionStats(long periodMsec) {
+		this.periodMsec = periodMsec;
+	}
+
+	/**
+	 * The histograms of a camera, created the first time it is asked for
+	 */
+	public Pipeline pipeline(String camera) {
+		Pipeline pipeline = pipelines.get(camera);
+		if (pipeline == null) {
+			pipelines.putIfAbsent(camera, new Pipeline());
+			pipeline = pipelines.get(camera);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * A table of count, p50, p99 and max in milliseconds for every recorded stage,
+	 * followed by the frame scheduling counts of each camera
+	 */
+	public String summary() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-10s %-11s %8s %8s %8s %8s%n", "camera", "stage", "count", "p50", "p99", "max"));
+		for (Map.Entry<String, Pipeline> entry : pipelines.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram h = entry.getValue().get(stage);
+				if (h.getCount() == 0) {
+					continue;
+				}
+				out.append(String.format("%-10s %-11s %8d %8.2f %8.2f %8.2f%n", entry.getKey(), stage, h.getCount(),
+					h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+			}
+		}
+		for (Map.Entry<String, Pipeline> entry : pipelines.entrySet()) {
+			Pipeline pipeline = entry.getValue();
+			if (pipeline.getCount(Event.Processed) + pipeline.getCount(Event.Stale) + pipeline.getCount(Event.Dropped) > 0) {
+				out.append(String.format("%-10s frames %d processed, %d stale skipped, %d late, %d dropped unread%n", entry.getKey(),
+					pipeline.getCount(Event.Processed), pipeline.getCount(Event.Stale), pipeline.getCount(Event.Late),
+					pipeline.getCount(Event.Dropped)));
+			}
+		}
+		return out.toString();
+	}
+
+	public void reset() {
+		for (Pipeline pipeline : pipelines.values()) {
+			for (LatencyHistogram h : pipeline.stages) {
+				h.reset();
+			}
+			for (int i = 0; i < pipeline.events.length(); i++) {
+				pipeline.events.set(i, 0);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		if (periodMsec <= 0) {
+			return;
+		}
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(periodMsec);
+				System.out.print(summary());
+				reset();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,459 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.util.*;
+
+/**
+ * The working buffers of one vision pipeline. The Mats are allocated on the first
+ * frame and reused for every frame after it, as long as the frame size does not
+ * change. The bounding box and area of each contour are computed once and cached
+ * in plain arrays, and the contour point lists are released as soon as they have
+ * been measured instead of waiting for the garbage collector to finalize them.
+ *
+ * Processing can be limited to a region of the frame. The buffers stay full size
+ * and each stage works on a view of the region, so a moving region does not cause
+ * reallocation. A view is a Java object with its own native header, and the Java
+ * API cannot move one, so a view is kept for each image and region and shared by
+ * the stages. Once the regions a target moves through have been seen, processing
+ * makes no garbage at all, except for the point list and box that the Java binding
+ * makes for each contour. Contours found in a region are measured in
+ * frame coordinates. The mask outside the region is kept clear by clearing only
+ * what the previous region left behind, see prepareMask().
+ *
+ * Instead of contours, the blobs of the mask can be measured as connected
+ * components, which gives the same boxes and a pixel count area in one native call
+ * into reused Mats, and so makes no garbage.
+ */
+public class VisionWorkspace {
+
+	/**
+	 * The frame converted to the HSV color space
+	 */
+	public final Mat hsv = new Mat();
+
+	/**
+	 * The thresholded and filtered binary image
+	 */
+	public final Mat mask = new Mat();
+
+	/**
+	 * The binary image before noise removal, only kept separately when processing in strips
+	 */
+	public final Mat threshold = new Mat();
+
+	/**
+	 * Scratch image handed to findContours, which modifies its input
+	 */
+	public final Mat scratch = new Mat();
+
+	/**
+	 * Contour hierarchy output of findContours
+	 */
+	public final Mat hierarchy = new Mat();
+
+	/**
+	 * The contour list handed to findContours
+	 */
+	public final List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+
+	/**
+	 * Outputs of connectedComponentsWithStats, and its statistics copied out in one call
+	 */
+	public final Mat labels = new Mat();
+	public final Mat componentStats = new Mat();
+	public final Mat centroids = new Mat();
+	private int[] statsBuffer = new int[0];
+	private static final Scalar zero = new Scalar(0);
+
+	/**
+	 * Pixels copied out of the frame and into the mask by ColorLut
+	 */
+	private byte[] pixelBuffer = new byte[0];
+	private byte[] maskBuffer = new byte[0];
+
+	/**
+	 * The region of the frame being processed, or null for the whole frame
+	 */
+	private Rect region = null;
+	private final Point offset = new Point();
+
+	/**
+	 * The part of the mask that may still hold pixels from an earlier frame, and the
+	 * part of it being cleared
+	 */
+	private final Rect dirty = new Rect();
+	private final Rect clearing = new Rect();
+
+	/**
+	 * The views of the regions processed so far, with the image and image data each
+	 * one looks into and the region it was made for. There is room for the views of
+	 * every image in each of the windows RoiTracker picks as a target moves about.
+	 */
+	private final Mat[] views = new Mat[256];
+	private final Mat[] viewImages = new Mat[256];
+	private final long[] viewData = new long[256];
+	private final Rect[] viewRegions = new Rect[256];
+	private int nextView = 0;
+
+	/**
+	 * The views of each strip of StripProcessor
+	 */
+	private RowViews[] stripViews = new RowViews[0];
+
+	/**
+	 * Views of row ranges of full size images, kept like the views of the region. Each
+	 * strip has its own, so strips processed at the same time never share one.
+	 */
+	public static class RowViews {
+		private final Mat[] views = new Mat[12];
+		private final Mat[] images = new Mat[12];
+		private final long[] data = new long[12];
+		private final int[] cols = new int[12];
+		private final int[] tops = new int[12];
+		private final int[] bottoms = new int[12];
+		private int next = 0;
+
+		/**
+		 * A view of the given rows of an image, valid until the image is reallocated
+		 */
+		public Mat rows(Mat image, int top, int bottom) {
+			long address = image.dataAddr();
+			int width = image.cols();
+			for (int i = 0; i < views.length; i++) {
+				if (images[i] == image && data[i] == address && cols[i] == width && tops[i] == top && bottoms[i] == bottom) {
+					return views[i];
+				}
+			}
+
+			/**
+			 * Replace the oldest view
+			 */
+			int slot = next;
+			next = (next + 1) % views.length;
+			if (views[slot] != null) {
+				views[slot].release();
+			}
+			views[slot] = image.rowRange(top, bottom);
+			images[slot] = image;
+			data[slot] = address;
+			cols[slot] = width;
+			tops[slot] = top;
+			bottoms[slot] = bottom;
+			return views[slot];
+		}
+
+		void release() {
+			for (int i = 0; i < views.length; i++) {
+				if (views[i] != null) {
+					views[i].release();
+					views[i] = null;
+					images[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The measurements of each contour found in the current frame
+	 */
+	private int count = 0;
+	private int[] left = new int[16];
+	private int[] top = new int[16];
+	private int[] right = new int[16];
+	private int[] bottom = new int[16];
+	private double[] area = new double[16];
+
+	/**
+	 * Limit the following stages to a region of the frame, or the whole frame if null
+	 */
+	public void setRegion(Rect r) {
+		region = r;
+		offset.x = r != null ? r.x : 0;
+		offset.y = r != null ? r.y : 0;
+	}
+
+	public Rect getRegion() {
+		return region;
+	}
+
+	/**
+	 * A view of the current region of a full size image. The view belongs to the
+	 * workspace and stays valid until the image is reallocated.
+	 */
+	public Mat view(Mat image) {
+		if (region == null) {
+			return image;
+		}
+		long data = image.dataAddr();
+		for (int i = 0; i < views.length; i++) {
+			if (viewImages[i] == image) {
+				Rect r = viewRegions[i];
+				if (viewData[i] != data) {
+					/**
+					 * The image was reallocated, let go of its old data
+					 */
+					views[i].release();
+					viewImages[i] = null;
+				} else if (r.x == region.x && r.y == region.y && r.width == region.width && r.height == region.height) {
+					return views[i];
+				}
+			}
+		}
+
+		/**
+		 * Replace the oldest view
+		 */
+		int slot = nextView;
+		nextView = (nextView + 1) % views.length;
+		if (views[slot] != null) {
+			views[slot].release();
+		} else {
+			viewRegions[slot] = new Rect();
+		}
+		views[slot] = image.submat(region);
+		viewImages[slot] = image;
+		viewData[slot] = data;
+		viewRegions[slot].x = region.x;
+		viewRegions[slot].y = region.y;
+		viewRegions[slot].width = region.width;
+		viewRegions[slot].height = region.height;
+		return views[slot];
+	}
+
+	/**
+	 * The views of one strip. Only called by the frame thread, before the strips run.
+	 */
+	public RowViews getStripViews(int strip) {
+		if (strip >= stripViews.length) {
+			stripViews = Arrays.copyOf(stripViews, strip + 1);
+		}
+		if (stripViews[strip] == null) {
+			stripViews[strip] = new RowViews();
+		}
+		return stripViews[strip];
+	}
+
+	/**
+	 * Make the mask the given size, with everything outside the current region clear
+	 * for the stages to write the region. Only the part of the previous frame's region
+	 * that lies outside the current one is cleared, instead of the whole mask.
+	 */
+	public void prepareMask(int rows, int cols) {
+		if (mask.rows() != rows || mask.cols() != cols || mask.type() != CvType.CV_8UC1) {
+			mask.create(rows, cols, CvType.CV_8UC1);
+			dirty.x = 0;
+			dirty.y = 0;
+			dirty.width = cols;
+			dirty.height = rows;
+		}
+		if (region == null) {
+			/**
+			 * The stages write the whole mask
+			 */
+			dirty.x = 0;
+			dirty.y = 0;
+			dirty.width = cols;
+			dirty.height = rows;
+			return;
+		}
+
+		/**
+		 * Clear the rows of the dirty part above and below the region, then the columns
+		 * beside it in the rows they share
+		 */
+		int dirtyRight = dirty.x + dirty.width;
+		int dirtyBottom = dirty.y + dirty.height;
+		int top = Math.max(dirty.y, region.y);
+		int bottom = Math.min(dirtyBottom, region.y + region.height);
+		clear(dirty.x, dirty.y, dirtyRight, Math.min(dirtyBottom, region.y));
+		clear(dirty.x, Math.max(dirty.y, region.y + region.height), dirtyRight, dirtyBottom);
+		clear(dirty.x, top, Math.min(dirtyRight, region.x), bottom);
+		clear(Math.max(dirty.x, region.x + region.width), top, dirtyRight, bottom);
+		dirty.x = region.x;
+		dirty.y = region.y;
+		dirty.width = region.width;
+		dirty.height = region.height;
+	}
+
+	/**
+	 * Clear the whole mask, as when nothing in the frame is worth processing
+	 */
+	public void clearMask(int rows, int cols) {
+		mask.create(rows, cols, CvType.CV_8UC1);
+		clear(0, 0, cols, rows);
+		dirty.width = 0;
+		dirty.height = 0;
+	}
+
+	private void clear(int x0, int y0, int x1, int y1) {
+		if (x1 <= x0 || y1 <= y0) {
+			return;
+		}
+		clearing.x = x0;
+		clearing.y = y0;
+		clearing.width = x1 - x0;
+		clearing.height = y1 - y0;
+		Imgproc.rectangle(mask, clearing, zero, Imgproc.FILLED);
+	}
+
+	/**
+	 * Scratch arrays of at least the given number of bytes, grown only when the frame gets larger
+	 */
+	public byte[] getPixelBuffer(int size) {
+		if (pixelBuffer.length < size) {
+			pixelBuffer = new byte[size];
+		}
+		return pixelBuffer;
+	}
+
+	public byte[] getMaskBuffer(int size) {
+		if (maskBuffer.length < size) {
+			maskBuffer = new byte[size];
+		}
+		return maskBuffer;
+	}
+
+	/**
+	 * Find the contours in the current region of the mask and measure them, leaving the mask untouched
+	 */
+	public int findContours() {
+		scratch.create(mask.rows(), mask.cols(), mask.type());
+		Mat target = view(scratch);
+		view(mask).copyTo(target);
+		Imgproc.findContours(target, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE, offset);
+
+		count = contours.size();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			MatOfPoint contour = contours.get(i);
+			Rect boundary = Imgproc.boundingRect(contour);
+			left[i] = boundary.x;
+			top[i] = boundary.y;
+			right[i] = boundary.x + boundary.width;
+			bottom[i] = boundary.y + boundary.height;
+			area[i] = Imgproc.contourArea(contour);
+			contour.release();
+		}
+		contours.clear();
+		return count;
+	}
+
+	/**
+	 * Find the connected components in the current region of the mask and measure them.
+	 * Grana's block based labelling is about twice as fast here as the default choice.
+	 * The labels are written to the region of a buffer the size of the mask, which
+	 * is not reallocated when the window changes size.
+	 */
+	public int findComponents() {
+		labels.create(mask.rows(), mask.cols(), CvType.CV_32S);
+		int labelCount = Imgproc.connectedComponentsWithStatsWithAlgorithm(view(mask), view(labels), componentStats, centroids,
+			8, CvType.CV_32S, Imgproc.CCL_GRANA);
+
+		/**
+		 * Label 0 is the background
+		 */
+		int size = labelCount * Imgproc.CC_STAT_MAX;
+		if (statsBuffer.length < size) {
+			statsBuffer = new int[size];
+		}
+		componentStats.get(0, 0, statsBuffer);
+
+		int x = (int)offset.x;
+		int y = (int)offset.y;
+		count = labelCount - 1;
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			int row = (i + 1) * Imgproc.CC_STAT_MAX;
+			left[i] = statsBuffer[row + Imgproc.CC_STAT_LEFT] + x;
+			top[i] = statsBuffer[row + Imgproc.CC_STAT_TOP] + y;
+			right[i] = left[i] + statsBuffer[row + Imgproc.CC_STAT_WIDTH];
+			bottom[i] = top[i] + statsBuffer[row + Imgproc.CC_STAT_HEIGHT];
+			area[i] = statsBuffer[row + Imgproc.CC_STAT_AREA];
+		}
+		return count;
+	}
+
+	/**
+	 * Grow the measurement arrays, only ever needed during the first few frames
+	 */
+	private void ensureCapacity(int n) {
+		if (n <= area.length) {
+			return;
+		}
+		int size = Math.max(n, area.length * 2);
+		left = Arrays.copyOf(left, size);
+		top = Arrays.copyOf(top, size);
+		right = Arrays.copyOf(right, size);
+		bottom = Arrays.copyOf(bottom, size);
+		area = Arrays.copyOf(area, size);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getLeft(int i) {
+		return left[i];
+	}
+
+	public int getTop(int i) {
+		return top[i];
+	}
+
+	public int getRight(int i) {
+		return right[i];
+	}
+
+	public int getBottom(int i) {
+		return bottom[i];
+	}
+
+	public int getWidth(int i) {
+		return right[i] - left[i];
+	}
+
+	public int getHeight(int i) {
+		return bottom[i] - top[i];
+	}
+
+	public double getArea(int i) {
+		return area[i];
+	}
+
+	/**
+	 * The horizontal center of a contour's bounding box
+	 */
+	public double getCenterX(int i) {
+		return (double)(left[i] + right[i]) / 2.0;
+	}
+
+	public double getCenterY(int i) {
+		return (double)(top[i] + bottom[i]) / 2.0;
+	}
+
+	/**
+	 * Release the native buffers held by this workspace
+	 */
+	public void release() {
+		hsv.release();
+		mask.release();
+		threshold.release();
+		for (int i = 0; i < views.length; i++) {
+			if (views[i] != null) {
+				views[i].release();
+				views[i] = null;
+				viewImages[i] = null;
+			}
+		}
+		for (RowViews strip : stripViews) {
+			if (strip != null) {
+				strip.release();
+			}
+		}
+		scratch.release();
+		hierarchy.release();
+		labels.release();
+		componentStats.release();
+		centroids.release();
+	}
+}
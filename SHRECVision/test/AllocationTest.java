@@ -0,0 +1,146 @@
+import org.opencv.core.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Once warmed up, VisionPipeline.process makes no garbage: a target moving about the
+ * frame is processed with the tunables of prefs.txt, window tracking included, while
+ * the bytes the thread allocates on the Java heap are counted over one long run.
+ * Only the processing rate is raised, so the run does not take minutes. The same is
+ * checked with the color table, whole frames, the shrunk frame search and parallel
+ * strips. What the strip pool's threads allocate is counted with what the frame
+ * thread does.
+ *
+ * The frames are drawn before the runs and copied into one buffer, as the capture
+ * thread decodes into the mailbox's buffers. The warm-up run goes through the same
+ * frames, so the JIT has compiled the loop and the workspace has made its views of
+ * every window the target passes through before anything is counted.
+ *
+ * Native memory cannot be counted this way. The workspace's buffers are checked to
+ * keep their addresses, so they are not reallocated, but buffers OpenCV allocates
+ * inside a call are not seen. The rest of a frame in SHRECVision.process, the
+ * estimator, flight recorder, debug stream and telemetry, is not covered.
+ */
+public class AllocationTest {
+
+	/**
+	 * One sweep of the target across the frame and back. The runs are whole sweeps,
+	 * so the target does not jump to a new place between them.
+	 */
+	private static final int sweep = 120;
+	private static final int warmup = 80 * sweep;
+	private static final int frames = 80 * sweep;
+
+	public static void testDefaults() throws Exception {
+		check(prefs());
+	}
+
+	public static void testLut() throws Exception {
+		check(prefs().with("threshold_mode", "lut"));
+	}
+
+	public static void testWholeFrames() throws Exception {
+		check(prefs().with("roi_enabled", "false"));
+	}
+
+	public static void testShrunkFrameSearch() throws Exception {
+		check(prefs().with("roi_enabled", "false").with("pyramid_scale", "2"));
+	}
+
+	public static void testParallelStrips() throws Exception {
+		check(prefs().with("roi_enabled", "false").with("parallel_strips", "4"));
+	}
+
+	public static void testParallelStripsLut() throws Exception {
+		check(prefs().with("roi_enabled", "false").with("parallel_strips", "4").with("threshold_mode", "lut"));
+	}
+
+	private static VisionPrefs prefs() throws Exception {
+		return ColorLutTest.prefs().with("target_fps_Gear", "1000000");
+	}
+
+	private static void check(VisionPrefs p) {
+		if (p.getString("threshold_mode", "hsv").equals("lut")) {
+			Check.eventually(10000, () -> ColorLut.get(p) != null, "color table built");
+		}
+		SyntheticSource source = new SyntheticSource(UDPClient.VisionState.Gear, 320, 240, sweep, 15.0);
+		Check.isTrue(source.open(), "opened");
+		Mat[] drawn = new Mat[sweep];
+		for (int i = 0; i < sweep; i++) {
+			drawn[i] = new Mat();
+			Check.isTrue(source.read(drawn[i]), "read");
+		}
+		source.release();
+
+		Mat frame = new Mat();
+		VisionPipeline pipeline = new VisionPipeline(UDPClient.VisionState.Gear, new VisionStats(0).pipeline("Gear"));
+		FrameScheduler scheduler = new FrameScheduler();
+		run(pipeline, scheduler, drawn, frame, p, warmup);
+		long[] addresses = addresses(pipeline.getWorkspace());
+
+		/**
+		 * Counting allocates the array of counts, so what it takes is counted once
+		 * with nothing in between and left out
+		 */
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long[] ids = processingThreads();
+		long[] empty = threads.getThreadAllocatedBytes(ids);
+		long[] before = threads.getThreadAllocatedBytes(ids);
+		int found = run(pipeline, scheduler, drawn, frame, p, frames);
+		long[] after = threads.getThreadAllocatedBytes(ids);
+		long allocated = 0;
+		for (int t = 0; t < ids.length; t++) {
+			allocated += (after[t] - before[t]) - (before[t] - empty[t]);
+		}
+
+		Check.equal(frames, found, "frames with the target found");
+		Check.equal(0, allocated, "bytes allocated in " + frames + " frames");
+		long[] last = addresses(pipeline.getWorkspace());
+		for (int b = 0; b < buffers.length; b++) {
+			Check.equal(addresses[b], last[b], "address of the " + buffers[b] + " buffer after the warm-up");
+		}
+		pipeline.release();
+		frame.release();
+		for (Mat mat : drawn) {
+			mat.release();
+		}
+	}
+
+	private static final String[] buffers = {"hsv", "mask", "threshold", "labels", "component stats", "centroids"};
+
+	/**
+	 * The native data of the workspace's buffers, in the order of their names
+	 */
+	private static long[] addresses(VisionWorkspace ws) {
+		return new long[] {ws.hsv.dataAddr(), ws.mask.dataAddr(), ws.threshold.dataAddr(),
+			ws.labels.dataAddr(), ws.componentStats.dataAddr(), ws.centroids.dataAddr()};
+	}
+
+	/**
+	 * This thread and the strip pool's, which exist once the first frames have been processed
+	 */
+	private static long[] processingThreads() {
+		Thread current = Thread.currentThread();
+		return Thread.getAllStackTraces().keySet().stream()
+			.filter(t -> t == current || t instanceof ForkJoinWorkerThread)
+			.mapToLong(Thread::getId).toArray();
+	}
+
+	/**
+	 * Process the given number of frames of the sweep as the vision loop does, and
+	 * return how many times the target was found
+	 */
+	private static int run(VisionPipeline pipeline, FrameScheduler scheduler, Mat[] drawn, Mat frame, VisionPrefs p, int count) {
+		int found = 0;
+		for (int i = 0; i < count; i++) {
+			drawn[i % drawn.length].copyTo(frame);
+			long deadline = scheduler.await(UDPClient.VisionState.Gear, p);
+			if (!scheduler.isStale(System.nanoTime(), p) && pipeline.process(frame, p)) {
+				found++;
+			}
+			scheduler.isLate(deadline);
+		}
+		return found;
+	}
+}
@@ -0,0 +1,132 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+import org.opencv.imgproc.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Calibrator run on a small corpus of drawn frames whose thresholds are known.
+ *
+ * The left strip of the gear tape is drawn at hue 56 and the right at hue 64, so
+ * both are only found with h_min at most 56 and h_max at least 64. Frames without
+ * the target hold a decoy pair at hue 48 or 72, which a wider range would take for
+ * the target. Of the hues tried, only h_min 52 and h_max 68 find every target and
+ * no decoy.
+ */
+public class CalibratorTest {
+
+	private static final int[] tapeHues = {56, 64};
+	private static final int[] decoyHues = {48, 72};
+
+	/**
+	 * The first eight lines of prefs.txt for the given HSV bounds and area limits
+	 */
+	private static List<String> prefs(int hMin, int sMin, int vMin, int hMax, int sMax, int vMax) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		for (int value : new int[] {hMin, sMin, vMin, hMax, sMax, vMax}) {
+			lines.add(String.valueOf(value));
+		}
+		lines.add("10.0");
+		lines.add("50000.0");
+		List<String> rest = Files.readAllLines(Paths.get("prefs.txt"), StandardCharsets.UTF_8);
+		int position = 0;
+		for (String line : rest) {
+			String trimmed = line.trim();
+			if (position < 8 && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+				position++;
+			} else {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * The gear target with each strip in its own hue, at full saturation and near full value
+	 */
+	private static void draw(Mat frame, double centerX, double centerY, int leftHue, int rightHue, long seed) {
+		frame.create(240, 320, CvType.CV_8UC3);
+		SyntheticTarget.draw(frame, UDPClient.VisionState.Gear, centerX, centerY, 5.0, seed);
+		Mat tape = new Mat();
+		Core.inRange(frame, new Scalar(41, 41, 41), new Scalar(255, 255, 255), tape);
+		int middle = (int)Math.round(centerX);
+		paint(frame.colRange(0, middle), tape.colRange(0, middle), leftHue);
+		paint(frame.colRange(middle, frame.cols()), tape.colRange(middle, frame.cols()), rightHue);
+		tape.release();
+	}
+
+	private static void paint(Mat frame, Mat mask, int hue) {
+		Mat hsv = new Mat(1, 1, CvType.CV_8UC3, new Scalar(hue, 255, 240));
+		Mat bgr = new Mat();
+		Imgproc.cvtColor(hsv, bgr, Imgproc.COLOR_HSV2BGR);
+		double[] color = bgr.get(0, 0);
+		frame.setTo(new Scalar(color), mask);
+		hsv.release();
+		bgr.release();
+	}
+
+	public static void testSweepRecoversKnownThresholds() throws Exception {
+		Path dir = Files.createTempDirectory("calibrator");
+		try {
+			/**
+			 * Targets about the frame, and as many frames with a decoy pair of each hue
+			 */
+			Mat frame = new Mat();
+			double[][] places = {{100, 120}, {160, 100}, {220, 140}, {140, 130}};
+			int count = 0;
+			for (double[] place : places) {
+				draw(frame, place[0], place[1], tapeHues[0], tapeHues[1], count);
+				Imgcodecs.imwrite(dir.resolve(String.format(Locale.ROOT, "frame%02d.png", count++)).toString(), frame);
+				for (int hue : decoyHues) {
+					draw(frame, place[0], place[1], hue, hue, count);
+					Imgcodecs.imwrite(dir.resolve(String.format(Locale.ROOT, "frame%02d.png", count++)).toString(), frame);
+				}
+			}
+			frame.release();
+
+			/**
+			 * Label the frames with the known thresholds, as a person would check them
+			 */
+			Path known = dir.resolve("known.txt");
+			Files.write(known, prefs(52, 100, 100, 68, 255, 255), StandardCharsets.UTF_8);
+			Calibrator.main(new String[] {dir.toString(), "--prefs", known.toString(), "--label"});
+			List<String> labels = Files.readAllLines(dir.resolve("labels.csv"), StandardCharsets.UTF_8);
+			Check.equal(count + 1, labels.size(), "lines of labels.csv");
+			for (int i = 0; i < count; i++) {
+				boolean target = i % 3 == 0;
+				Check.isTrue(labels.get(i + 1).startsWith(String.format(Locale.ROOT, "frame%02d.png,%b,", i, target)),
+					"label " + labels.get(i + 1));
+			}
+
+			/**
+			 * Sweep the hue from preferences that find nothing
+			 */
+			Path start = dir.resolve("start.txt");
+			Path out = dir.resolve("calibrated.txt");
+			Files.write(start, prefs(0, 100, 100, 0, 255, 255), StandardCharsets.UTF_8);
+			Calibrator.main(new String[] {dir.toString(), "--prefs", start.toString(), "--out", out.toString(),
+				"--csv", dir.resolve("calibration.csv").toString(), "--threads", "2",
+				"--h_min", "40,46,52,58", "--h_max", "62,68,74,80", "--s_min", "100", "--v_min", "100", "--min_area", "10.0"});
+
+			List<String> calibrated = new ArrayList<String>();
+			for (String line : Files.readAllLines(out, StandardCharsets.UTF_8)) {
+				if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+					calibrated.add(line.trim());
+				}
+			}
+			Check.equal(Arrays.asList("52", "100", "100", "68", "255", "255"), calibrated.subList(0, 6), "calibrated HSV bounds");
+			Check.isTrue(Files.readAllLines(out, StandardCharsets.UTF_8).get(0).contains("F1 1.000"), "perfect score of the winner");
+
+			List<String> results = Files.readAllLines(dir.resolve("calibration.csv"), StandardCharsets.UTF_8);
+			Check.equal(count + 1, results.size(), "lines of calibration.csv");
+			for (int i = 0; i < count; i++) {
+				String[] fields = results.get(i + 1).split(",");
+				Check.equal(fields[1], fields[3], "timed result matches the label of " + fields[0]);
+			}
+		} finally {
+			SHRECVisionTest.delete(dir.toFile());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * The checks made by tests. Each throws an AssertionError describing what was
+ * wrong, which fails the test, see TestRunner.
+ */
+public final class Check {
+
+	private Check() {
+	}
+
+	public static void isTrue(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+
+	public static void equal(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected " + expected + ", was " + actual);
+		}
+	}
+
+	public static void equal(long expected, long actual, String what) {
+		if (expected != actual) {
+			throw new AssertionError(what + ": expected " + expected + ", was " + actual);
+		}
+	}
+
+	public static void near(double expected, double actual, double tolerance, String what) {
+		if (!(Math.abs(expected - actual) <= tolerance)) {
+			throw new AssertionError(what + ": expected " + expected + " within " + tolerance + ", was " + actual);
+		}
+	}
+
+	/**
+	 * Wait up to the given time for a condition to hold
+	 */
+	public static void eventually(long timeoutMsec, java.util.function.BooleanSupplier condition, String what) {
+		long deadline = System.nanoTime() + timeoutMsec * 1000000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new AssertionError(what + " within " + timeoutMsec + " ms");
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AssertionError("Interrupted waiting for " + what);
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * The exact color table thresholds every color the way cvtColor and inRange do,
+ * so threshold_mode=lut gives the same masks and results as threshold_mode=hsv.
+ */
+public class ColorLutTest {
+
+	static VisionPrefs prefs() throws Exception {
+		return VisionPrefs.parse(Files.readAllLines(Paths.get("prefs.txt"), StandardCharsets.UTF_8));
+	}
+
+	public static void testMatchesHsvOnSyntheticFrames() throws Exception {
+		VisionPrefs p = prefs();
+		ColorLut lut = ColorLut.build(p, 8);
+		for (UDPClient.VisionState target : new UDPClient.VisionState[] {UDPClient.VisionState.Gear, UDPClient.VisionState.Boiler}) {
+			SyntheticSource source = new SyntheticSource(target, 320, 240, 60, 15.0);
+			Check.isTrue(source.open(), "opened");
+			Mat frame = new Mat();
+			int frames = 0;
+			while (source.read(frame)) {
+				Check.equal(0, differences(lut, frame, p), target + " frame " + frames + " pixels differing");
+				frames++;
+			}
+			Check.equal(60, frames, "frames compared");
+			source.release();
+		}
+	}
+
+	/**
+	 * Random colors cover far more of the table than the synthetic target does
+	 */
+	public static void testMatchesHsvOnRandomColors() throws Exception {
+		VisionPrefs base = prefs();
+		int[][] thresholds = {
+			{base.getMin(0), base.getMin(1), base.getMin(2), base.getMax(0), base.getMax(1), base.getMax(2)},
+			{0, 0, 0, 180, 255, 255},
+			{30, 100, 50, 90, 255, 200},
+			{170, 0, 0, 180, 255, 255},
+		};
+		Mat frame = new Mat(240, 320, CvType.CV_8UC3);
+		for (int[] t : thresholds) {
+			VisionPrefs p = base.withThresholds(new int[] {t[0], t[1], t[2]}, new int[] {t[3], t[4], t[5]}, base.min_area, base.max_area);
+			ColorLut lut = ColorLut.build(p, 8);
+			for (int i = 0; i < 5; i++) {
+				Core.randu(frame, 0, 256);
+				Check.equal(0, differences(lut, frame, p), "pixels differing with thresholds " + java.util.Arrays.toString(t));
+			}
+		}
+	}
+
+	/**
+	 * The whole pipeline gives the same mask, target and angle either way
+	 */
+	public static void testPipelineResultsMatch() throws Exception {
+		VisionPrefs hsv = prefs().with("threshold_mode", "hsv");
+		VisionPrefs lut = hsv.with("threshold_mode", "lut").with("lut_bits", "8");
+		Check.eventually(10000, () -> ColorLut.get(lut) != null, "color table built");
+
+		VisionStats stats = new VisionStats(0);
+		VisionPipeline byHsv = new VisionPipeline(UDPClient.VisionState.Gear, stats.pipeline("hsv"));
+		VisionPipeline byLut = new VisionPipeline(UDPClient.VisionState.Gear, stats.pipeline("lut"));
+		SyntheticSource source = new SyntheticSource(UDPClient.VisionState.Gear, 320, 240, 60, 15.0);
+		Check.isTrue(source.open(), "opened");
+		Mat frame = new Mat();
+		Mat difference = new Mat();
+		int frames = 0;
+		while (source.read(frame)) {
+			boolean foundHsv = byHsv.process(frame, hsv);
+			boolean foundLut = byLut.process(frame, lut);
+			Check.equal(foundHsv, foundLut, "found in frame " + frames);
+			Core.absdiff(byHsv.getMask(), byLut.getMask(), difference);
+			Check.equal(0, Core.countNonZero(difference), "mask pixels differing in frame " + frames);
+			if (foundHsv) {
+				Check.near(byHsv.getAngle(), byLut.getAngle(), 0.0, "angle in frame " + frames);
+			}
+			frames++;
+		}
+		Check.equal(60, frames, "frames compared");
+		source.release();
+		byHsv.release();
+		byLut.release();
+	}
+
+	/**
+	 * Two cameras with thresholds of their own each get their table, and keep it
+	 * while both are running instead of rebuilding one for the other
+	 */
+	public static void testTablePerCameraThresholds() throws Exception {
+		VisionPrefs shared = prefs().with("threshold_mode", "lut").with("lut_bits", "8")
+			.with("camera_Gear_hsv_min", "30,100,50").with("camera_Gear_hsv_max", "90,255,200")
+			.with("camera_Boiler_hsv_min", "0,0,200").with("camera_Boiler_hsv_max", "180,60,255");
+		VisionPrefs gear = shared.forCamera("Gear");
+		VisionPrefs boiler = shared.forCamera("Boiler");
+		Check.eventually(10000, () -> ColorLut.get(gear) != null, "Gear color table built");
+		Check.eventually(10000, () -> ColorLut.get(boiler) != null, "Boiler color table built");
+
+		ColorLut gearLut = ColorLut.get(gear);
+		ColorLut boilerLut = ColorLut.get(boiler);
+		Check.isTrue(gearLut != null && boilerLut != null && gearLut != boilerLut, "a table for each camera");
+		for (int i = 0; i < 10; i++) {
+			Check.isTrue(ColorLut.get(gear) == gearLut, "Gear table kept");
+			Check.isTrue(ColorLut.get(boiler) == boilerLut, "Boiler table kept");
+		}
+
+		/**
+		 * Each table thresholds with its own camera's colors
+		 */
+		Mat frame = new Mat(240, 320, CvType.CV_8UC3);
+		Core.randu(frame, 0, 256);
+		Check.equal(0, differences(gearLut, frame, gear), "pixels differing with the Gear thresholds");
+		Check.equal(0, differences(boilerLut, frame, boiler), "pixels differing with the Boiler thresholds");
+		Check.isTrue(differences(gearLut, frame, boiler) > 0, "the Gear table differs from the Boiler thresholds");
+		frame.release();
+	}
+
+	/**
+	 * The number of pixels the table thresholds differently from cvtColor and inRange
+	 */
+	private static int differences(ColorLut lut, Mat frame, VisionPrefs p) {
+		int size = frame.rows() * frame.cols();
+		Mat byLut = new Mat(frame.rows(), frame.cols(), CvType.CV_8UC1);
+		lut.apply(frame, byLut, new byte[size * 3], new byte[size]);
+		Mat hsv = new Mat();
+		Mat byHsv = new Mat();
+		Imgproc.cvtColor(frame, hsv, Imgproc.COLOR_BGR2HSV);
+		Core.inRange(hsv, p.thd_color_low, p.thd_color_high, byHsv);
+		Core.absdiff(byLut, byHsv, byHsv);
+		int count = Core.countNonZero(byHsv);
+		byLut.release();
+		hsv.release();
+		byHsv.release();
+		return count;
+	}
+}
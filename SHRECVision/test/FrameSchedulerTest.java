@@ -0,0 +1,31 @@
+/**
+ * FrameScheduler reads its rates once per preferences instance, and picks up new
+ * ones as soon as reloaded preferences are passed in.
+ */
+public class FrameSchedulerTest {
+
+	static VisionPrefs prefs() {
+		return VisionPrefs.parse(java.util.Arrays.asList("0", "0", "0", "180", "255", "255", "0", "1"));
+	}
+
+	public static void testPeriodFollowsReload() {
+		VisionPrefs p = prefs().with("target_fps_Gear", "20");
+		FrameScheduler scheduler = new FrameScheduler();
+		scheduler.await(UDPClient.VisionState.Gear, p);
+		Check.equal(50000000L, scheduler.getPeriod(), "period at 20 fps");
+		scheduler.await(UDPClient.VisionState.Idle, p);
+		Check.equal(20000000L, scheduler.getPeriod(), "default Idle period");
+
+		VisionPrefs reloaded = p.with("target_fps_Gear", "40");
+		scheduler.await(UDPClient.VisionState.Gear, reloaded);
+		Check.equal(25000000L, scheduler.getPeriod(), "period after reload");
+	}
+
+	public static void testMaxAgeFollowsReload() {
+		VisionPrefs p = prefs().with("frame_max_age_msec", "1000");
+		FrameScheduler scheduler = new FrameScheduler();
+		long capturedAt = System.nanoTime() - 500000000L;
+		Check.isTrue(!scheduler.isStale(capturedAt, p), "half a second old with a one second limit");
+		Check.isTrue(scheduler.isStale(capturedAt, p.with("frame_max_age_msec", "100")), "half a second old after reloading a 100 ms limit");
+	}
+}
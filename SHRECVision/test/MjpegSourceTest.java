@@ -0,0 +1,254 @@
+import com.sun.net.httpserver.HttpServer;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MjpegSource against MjpegStandIn, and against a server that sends malformed
+ * responses, which must fail the read without killing the capture thread.
+ */
+public class MjpegSourceTest {
+
+	public static void testReadsFramesWithLength() throws IOException {
+		readFrames(true);
+	}
+
+	public static void testReadsFramesWithoutLength() throws IOException {
+		readFrames(false);
+	}
+
+	private static void readFrames(boolean sendLength) throws IOException {
+		HttpServer server = MjpegStandIn.serve("synthetic:Gear", 0, 60.0, 80, sendLength, 0, 0);
+		MjpegSource source = new MjpegSource(url(server), 1);
+		Mat frame = new Mat();
+		try {
+			Check.isTrue(source.open(), "opened");
+			for (int i = 0; i < 20; i++) {
+				Check.isTrue(source.read(frame), "read frame " + i);
+				Check.equal(320, frame.cols(), "width");
+				Check.equal(240, frame.rows(), "height");
+			}
+			Check.equal(20, source.getDecoded(), "decoded");
+			Check.isTrue(source.getFrames() >= 20, "received every frame decoded");
+		} finally {
+			source.release();
+			server.stop(0);
+		}
+	}
+
+	public static void testDecodesReduced() throws IOException {
+		HttpServer server = MjpegStandIn.serve("synthetic:Gear", 0, 60.0, 80, true, 0, 0);
+		MjpegSource source = new MjpegSource(url(server), 2);
+		Mat frame = new Mat();
+		try {
+			Check.isTrue(source.open(), "opened");
+			Check.isTrue(source.read(frame), "read");
+			Check.equal(160, frame.cols(), "width");
+			Check.equal(120, frame.rows(), "height");
+		} finally {
+			source.release();
+			server.stop(0);
+		}
+	}
+
+	public static void testSkipsToNewestFrame() throws Exception {
+		HttpServer server = MjpegStandIn.serve("synthetic:Gear", 0, 60.0, 80, true, 0, 0);
+		MjpegSource source = new MjpegSource(url(server), 1);
+		Mat frame = new Mat();
+		try {
+			Check.isTrue(source.open(), "opened");
+			Check.isTrue(source.read(frame), "first read");
+			Thread.sleep(300);
+			Check.isTrue(source.read(frame), "read after a pause");
+			Check.isTrue(source.getSkipped() > 0, "frames that arrived during the pause were skipped");
+			Check.equal(2, source.getDecoded(), "decoded");
+		} finally {
+			source.release();
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * A frame is as old as its first bytes, not as the end of its transfer or decode
+	 */
+	public static void testStampsFrameWhenItBeganToArrive() throws Exception {
+		Mat image = new Mat(240, 320, CvType.CV_8UC3, new Scalar(0, 255, 0));
+		MatOfByte jpeg = new MatOfByte();
+		Imgcodecs.imencode(".jpg", image, jpeg);
+		byte[] body = jpeg.toArray();
+		byte[] part = ("--b\r\nContent-Type: image/jpeg\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		try (ServerSocket server = new ServerSocket(0)) {
+			Thread thread = new Thread(() -> {
+				try (Socket socket = server.accept()) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+					String line;
+					while ((line = in.readLine()) != null && !line.isEmpty()) {
+					}
+					OutputStream out = socket.getOutputStream();
+					out.write(MULTIPART.getBytes(StandardCharsets.US_ASCII));
+					out.write(part);
+					out.write(body, 0, body.length / 2);
+					out.flush();
+					Thread.sleep(300);
+					out.write(body, body.length / 2, body.length - body.length / 2);
+					out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+					Thread.sleep(1000);
+				} catch (IOException | InterruptedException e) {
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+
+			MjpegSource source = new MjpegSource("http://localhost:" + server.getLocalPort() + "/", 1);
+			Mat frame = new Mat();
+			try {
+				Check.isTrue(source.open(), "opened");
+				Check.isTrue(source.read(frame), "read");
+				long age = System.nanoTime() - source.getCaptureTime();
+				Check.isTrue(age >= 250000000L, "frame age " + age + " ns includes the wait for its second half");
+				Check.isTrue(age < 5000000000L, "frame age " + age + " ns is from this frame");
+			} finally {
+				source.release();
+				frame.release();
+			}
+		}
+		image.release();
+		jpeg.release();
+	}
+
+	/**
+	 * Header names in any case, spaces around values, and a quoted boundary with dashes
+	 */
+	public static void testParsesHeadersLoosely() throws IOException {
+		Mat image = new Mat(240, 320, CvType.CV_8UC3, new Scalar(0, 255, 0));
+		MatOfByte jpeg = new MatOfByte();
+		Imgcodecs.imencode(".jpg", image, jpeg);
+		byte[] body = jpeg.toArray();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		response.write(("HTTP/1.1 200 OK\r\ncontent-type: multipart/x-mixed-replace; BOUNDARY=\"--myboundary\"\r\n\r\n"
+			+ "--myboundary\r\nCONTENT-LENGTH :  " + body.length + " \r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		response.write(body);
+		response.write("\r\n--myboundary\r\n".getBytes(StandardCharsets.US_ASCII));
+
+		try (ServerSocket server = rawServer(response.toByteArray())) {
+			MjpegSource source = new MjpegSource("http://localhost:" + server.getLocalPort() + "/", 1);
+			Mat frame = new Mat();
+			try {
+				Check.isTrue(source.open(), "opened");
+				Check.isTrue(source.read(frame), "read");
+				Check.equal(320, frame.cols(), "width");
+			} finally {
+				source.release();
+				frame.release();
+			}
+		}
+		image.release();
+		jpeg.release();
+	}
+
+	public static void testInvalidContentLengthFailsRead() throws IOException {
+		for (String length : new String[] {"abc", "-5", "99999999999"}) {
+			String part = "--b\r\nContent-Type: image/jpeg\r\nContent-Length: " + length + "\r\n\r\nxxxx\r\n";
+			Check.isTrue(!readRaw(MULTIPART + part), "read with Content-Length " + length);
+		}
+	}
+
+	public static void testBadStatusFailsRead() throws IOException {
+		for (String status : new String[] {"HTTP/1.0\r\n\r\n", "HTTP/1.0 503 Service Unavailable\r\n\r\n", "X\r\n\r\n"}) {
+			Check.isTrue(!readRaw(status), "read with response " + status.trim());
+		}
+	}
+
+	/**
+	 * A stream that fails keeps its capture thread running, and is reopened with backoff
+	 * until it works again
+	 */
+	public static void testCaptureThreadRecovers() throws Exception {
+		HttpServer server = MjpegStandIn.serve("synthetic:Gear", 0, 60.0, 80, true, 10, 200);
+		Supervisor.Resource health = new Supervisor(20, 100).register("test camera");
+		CaptureThread capture = new CaptureThread("Test", new MjpegSource(url(server), 1), new VisionStats(0), health);
+		Thread thread = new Thread(capture);
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			Check.eventually(5000, () -> health.getRecoveries() >= 2, "two recoveries");
+			Check.isTrue(thread.isAlive(), "capture thread alive");
+			Check.isTrue(capture.take(1000) != null, "frame after recovering");
+		} finally {
+			capture.stop();
+			server.stop(0);
+		}
+	}
+
+	public static void testCaptureThreadSurvivesMalformedStream() throws Exception {
+		ServerSocket server = rawServer(MULTIPART + "--b\r\nContent-Length: abc\r\n\r\n");
+		Supervisor.Resource health = new Supervisor(20, 100).register("test camera");
+		CaptureThread capture = new CaptureThread("Test", new MjpegSource("http://localhost:" + server.getLocalPort() + "/", 1),
+			new VisionStats(0), health);
+		Thread thread = new Thread(capture);
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			Check.eventually(5000, () -> health.getFailures() >= 3, "three failures");
+			Check.isTrue(thread.isAlive(), "capture thread alive");
+		} finally {
+			capture.stop();
+			server.close();
+		}
+	}
+
+	private static final String MULTIPART = "HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=b\r\n\r\n";
+
+	private static String url(HttpServer server) {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Read once from a server that answers with the given bytes
+	 */
+	private static boolean readRaw(String response) throws IOException {
+		try (ServerSocket server = rawServer(response)) {
+			MjpegSource source = new MjpegSource("http://localhost:" + server.getLocalPort() + "/", 1);
+			try {
+				Check.isTrue(source.open(), "opened");
+				return source.read(new Mat());
+			} finally {
+				source.release();
+			}
+		}
+	}
+
+	/**
+	 * A server that answers every connection with the given bytes and leaves it open
+	 */
+	private static ServerSocket rawServer(String response) throws IOException {
+		return rawServer(response.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static ServerSocket rawServer(byte[] response) throws IOException {
+		ServerSocket server = new ServerSocket(0);
+		Thread thread = new Thread(() -> {
+			while (!server.isClosed()) {
+				try {
+					Socket socket = server.accept();
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+					String line;
+					while ((line = in.readLine()) != null && !line.isEmpty()) {
+					}
+					socket.getOutputStream().write(response);
+					socket.getOutputStream().flush();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+}
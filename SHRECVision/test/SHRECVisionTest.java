@@ -0,0 +1,194 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The whole vision process, started as on the raspberry pi in its own JVM, with
+ * MjpegStandIn serving its cameras and a UDPServer on this machine standing in
+ * for the RoboRIO. The vision state set on the server picks which camera's
+ * pipeline runs, and its results come back to the server.
+ *
+ * Both stand-ins serve the gear target. The Gear camera looks for it and finds
+ * it; the Boiler camera looks for the boiler and must not. The Boiler camera
+ * decodes at half size, so the recordings of the two cameras can be told apart.
+ * The components detector, the default, scores blobs against each target's
+ * geometry, which keeps the Boiler camera from taking the gear tape. The cameras
+ * are read by MjpegSource.
+ */
+public class SHRECVisionTest {
+
+	public static void testVisionStateDrivesCameras() throws Exception {
+		Path dir = Files.createTempDirectory("shrecvision");
+		HttpServer gearCamera = MjpegStandIn.serve("synthetic:Gear", 0, 30.0, 80, true, 0, 0);
+		HttpServer boilerCamera = MjpegStandIn.serve("synthetic:Gear", 0, 30.0, 80, true, 0, 0);
+		int udpPort = freeUdpPort();
+		int debugPort = freeTcpPort();
+
+		List<String> lines = new ArrayList<String>(Files.readAllLines(Paths.get("prefs.txt"), StandardCharsets.UTF_8));
+		lines.add("capture_reader=mjpeg");
+		lines.add("cameras=Gear,Boiler");
+		lines.add("camera_Gear_url=http://localhost:" + gearCamera.getAddress().getPort() + "/");
+		lines.add("camera_Boiler_url=http://localhost:" + boilerCamera.getAddress().getPort() + "/");
+		lines.add("camera_Boiler_mjpeg_reduce=2");
+		lines.add("udp_server=127.0.0.1:" + udpPort);
+		lines.add("debug_port=" + debugPort);
+		lines.add("recorder_directory=" + dir.resolve("recordings"));
+		Path prefsFile = dir.resolve("prefs.txt");
+		Files.write(prefsFile, lines, StandardCharsets.UTF_8);
+
+		UDPServer server = new UDPServer(udpPort);
+		Thread serverThread = new Thread(server, "UDP server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		File log = dir.resolve("vision.log").toFile();
+		Process vision = new ProcessBuilder(
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp", System.getProperty("java.class.path"),
+			"-Djava.library.path=" + System.getProperty("java.library.path"),
+			"-Dshrecvision.prefs=" + prefsFile,
+			"SHRECVision")
+			.redirectErrorStream(true).redirectOutput(log).start();
+		try {
+			Check.eventually(10000, () -> server.getReceivedCount() > 0, "packets from the vision client");
+
+			/**
+			 * The Gear camera finds its target
+			 */
+			server.setVisionState(UDPServer.VisionState.Gear);
+			Check.eventually(5000, () -> server.getSnapshot().targetFound, "target found in the Gear state");
+			Check.isTrue(Math.abs(server.getAngle()) <= SHRECVision.camera_horizontal_fov / 2.0, "angle within the field of view");
+
+			/**
+			 * The Boiler camera does not find the gear target, and nothing else answers for it
+			 */
+			server.setVisionState(UDPServer.VisionState.Boiler);
+			Check.eventually(5000, () -> !server.getSnapshot().targetFound, "no target in the Boiler state");
+			long sequence = server.getSequence();
+			for (int i = 0; i < 20; i++) {
+				Thread.sleep(25);
+				Check.isTrue(!server.getSnapshot().targetFound, "no target in the Boiler state after " + (i * 25) + " ms");
+			}
+			Check.isTrue(server.getSequence() > sequence, "the Boiler camera kept reporting");
+
+			server.setVisionState(UDPServer.VisionState.Gear);
+			Check.eventually(5000, () -> server.getSnapshot().targetFound, "target found in the Gear state again");
+
+			/**
+			 * Each camera has its own debug stream
+			 */
+			byte[] jpeg = firstPart(new URL("http://localhost:" + debugPort + "/stream/Gear"));
+			Check.isTrue(jpeg.length > 2 && (jpeg[0] & 0xff) == 0xff && (jpeg[1] & 0xff) == 0xd8, "JPEG from /stream/Gear");
+
+			/**
+			 * Each camera records to its own directory, at its own frame size
+			 */
+			server.requestRecording();
+			Path recordings = dir.resolve("recordings");
+			Check.eventually(5000, () -> recording(recordings, "-Gear-udp") != null && recording(recordings, "-Boiler-udp") != null,
+				"a recording from each camera");
+			checkSize(recording(recordings, "-Gear-udp"), 320, 240);
+			checkSize(recording(recordings, "-Boiler-udp"), 160, 120);
+		} catch (AssertionError e) {
+			System.out.println(new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+			throw e;
+		} finally {
+			vision.destroy();
+			vision.waitFor();
+			server.setVisionState(UDPServer.VisionState.Disabled);
+			gearCamera.stop(0);
+			boilerCamera.stop(0);
+			delete(dir.toFile());
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * The recording directory whose name contains the given text, once all of it is written
+	 */
+	private static File recording(Path recordings, String contains) {
+		File[] dirs = recordings.toFile().listFiles((d, name) -> name.contains(contains));
+		if (dirs == null || dirs.length == 0) {
+			return null;
+		}
+		File[] files = dirs[0].listFiles();
+		return files != null && files.length > 0 ? dirs[0] : null;
+	}
+
+	private static void checkSize(File recording, int width, int height) {
+		File[] raws = recording.listFiles((d, name) -> name.endsWith("-raw.png"));
+		Check.isTrue(raws != null && raws.length > 0, "raw frames in " + recording);
+		for (File raw : raws) {
+			org.opencv.core.Mat image = org.opencv.imgcodecs.Imgcodecs.imread(raw.getPath());
+			if (image.empty()) {
+				/**
+				 * Still being written
+				 */
+				continue;
+			}
+			Check.equal(width + "x" + height, image.cols() + "x" + image.rows(), "size of " + raw);
+			image.release();
+		}
+	}
+
+	/**
+	 * The body of the first part of an MJPEG stream
+	 */
+	private static byte[] firstPart(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setReadTimeout(5000);
+		try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+			Check.isTrue(connection.getContentType().startsWith("multipart/x-mixed-replace"), "multipart stream");
+			int length = -1;
+			String line;
+			while ((line = readLine(in)) != null) {
+				if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+					length = Integer.parseInt(line.substring("content-length:".length()).trim());
+				} else if (line.isEmpty() && length >= 0) {
+					byte[] body = new byte[length];
+					in.readFully(body);
+					return body;
+				}
+			}
+			throw new AssertionError("No part in " + url);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			if (c != '\r') {
+				line.append((char)c);
+			}
+		}
+		return c < 0 && line.length() == 0 ? null : line.toString();
+	}
+
+	private static int freeUdpPort() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static int freeTcpPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
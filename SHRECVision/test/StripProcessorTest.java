@@ -0,0 +1,45 @@
+import org.opencv.core.*;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Frames processed in strips give the same mask as whole frames, whatever share
+ * of the vision cores is free, and every core taken for a strip is given back.
+ */
+public class StripProcessorTest {
+
+	public static void testSameMaskUnderAnyBudget() throws Exception {
+		VisionPrefs whole = ColorLutTest.prefs().with("roi_enabled", "false").with("parallel_strips", "1");
+		VisionPrefs strips = whole.with("parallel_strips", "4");
+		VisionStats stats = new VisionStats(0);
+		VisionPipeline reference = new VisionPipeline(UDPClient.VisionState.Gear, stats.pipeline("whole"));
+		VisionPipeline pipeline = new VisionPipeline(UDPClient.VisionState.Gear, stats.pipeline("strips"));
+
+		/**
+		 * This thread holds one core, and the others are free or not
+		 */
+		Semaphore cores = new Semaphore(4);
+		pipeline.setCores(cores);
+		cores.acquire();
+
+		SyntheticSource source = new SyntheticSource(UDPClient.VisionState.Gear, 320, 240, 30, 15.0);
+		Check.isTrue(source.open(), "opened");
+		Mat frame = new Mat();
+		Mat difference = new Mat();
+		int frames = 0;
+		while (source.read(frame)) {
+			int taken = frames % 4;
+			cores.acquire(taken);
+			Check.equal(reference.process(frame, whole), pipeline.process(frame, strips), "found in frame " + frames);
+			Core.absdiff(reference.getMask(), pipeline.getMask(), difference);
+			Check.equal(0, Core.countNonZero(difference), "mask pixels differing in frame " + frames + " with " + taken + " more cores taken");
+			Check.equal(3 - taken, cores.availablePermits(), "cores free after frame " + frames);
+			cores.release(taken);
+			frames++;
+		}
+		Check.equal(30, frames, "frames compared");
+		source.release();
+		reference.release();
+		pipeline.release();
+	}
+}
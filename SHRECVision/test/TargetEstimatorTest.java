@@ -0,0 +1,128 @@
+/**
+ * TargetEstimator fed measurements stamped with made-up capture times, so the
+ * filtered angle, rate and prediction can be checked against a known target.
+ */
+public class TargetEstimatorTest {
+
+	private static final long msec = 1000000L;
+
+	/**
+	 * The tunables of prefs.txt, spelled out so the expected values can be worked out here
+	 */
+	private static VisionPrefs prefs() throws Exception {
+		return ColorLutTest.prefs()
+			.with("estimator_alpha", "0.5")
+			.with("estimator_beta", "0.1")
+			.with("estimator_gate_deg", "10.0")
+			.with("estimator_timeout_msec", "500");
+	}
+
+	/**
+	 * A target turning at a constant rate, seen at 30 frames a second: the rate is
+	 * learned, and the angle follows without lag
+	 */
+	public static void testConvergesOnConstantRate() throws Exception {
+		VisionPrefs p = prefs();
+		TargetEstimator estimator = new TargetEstimator();
+		long start = 1000 * msec;
+		double rate = 20.0;
+		long captured = start;
+		for (int frame = 0; frame < 90; frame++) {
+			captured = start + frame * 33 * msec;
+			estimator.update(5.0 + rate * (captured - start) / 1e9, captured, p);
+		}
+		double angle = 5.0 + rate * (captured - start) / 1e9;
+		Check.isTrue(estimator.isValid(), "valid");
+		Check.equal(captured, estimator.getTimestamp(), "timestamp of the latest frame");
+		Check.near(rate, estimator.getRate(), 0.1, "rate in degrees a second");
+		Check.near(angle, estimator.getAngle(), 0.01, "filtered angle");
+		Check.near(angle + rate * 0.1, estimator.predict(captured + 100 * msec), 0.02, "angle predicted 100 ms on");
+	}
+
+	/**
+	 * A measurement further from the prediction than the gate restarts the filter
+	 * there; one inside it is only blended in
+	 */
+	public static void testGateRestartsOnJump() throws Exception {
+		VisionPrefs p = prefs();
+		TargetEstimator estimator = new TargetEstimator();
+		long captured = 1000 * msec;
+		for (int frame = 0; frame < 10; frame++) {
+			captured += 33 * msec;
+			estimator.update(0.0, captured, p);
+		}
+		Check.near(0.0, estimator.getRate(), 1e-9, "rate of a still target");
+
+		captured += 33 * msec;
+		estimator.update(4.0, captured, p);
+		Check.near(2.0, estimator.getAngle(), 1e-9, "half of a residual inside the gate");
+		Check.near(0.1 * 4.0 / 0.033, estimator.getRate(), 1e-6, "rate after a residual inside the gate");
+
+		captured += 33 * msec;
+		estimator.update(-15.0, captured, p);
+		Check.near(-15.0, estimator.getAngle(), 1e-9, "angle restarted at a measurement outside the gate");
+		Check.near(0.0, estimator.getRate(), 1e-9, "rate restarted");
+		Check.equal(captured, estimator.getTimestamp(), "timestamp of the restart");
+	}
+
+	/**
+	 * After estimator_timeout_msec without the target the estimate is dropped, and the
+	 * next measurement starts a new one instead of being blended with the old
+	 */
+	public static void testRestartsAfterTimeout() throws Exception {
+		VisionPrefs p = prefs();
+		TargetEstimator estimator = new TargetEstimator();
+		Check.isTrue(!estimator.isValid(), "no estimate before the first measurement");
+		long captured = 1000 * msec;
+		for (int frame = 0; frame < 30; frame++) {
+			captured += 33 * msec;
+			estimator.update(frame * 0.5, captured, p);
+		}
+		Check.isTrue(estimator.getRate() > 5.0, "rate learned");
+
+		estimator.miss(captured + 400 * msec, p);
+		Check.isTrue(estimator.isValid(), "still valid 400 ms after the last measurement");
+		estimator.miss(captured + 600 * msec, p);
+		Check.isTrue(!estimator.isValid(), "dropped 600 ms after the last measurement");
+
+		estimator.update(3.0, captured + 633 * msec, p);
+		Check.isTrue(estimator.isValid(), "valid again");
+		Check.near(3.0, estimator.getAngle(), 1e-9, "angle restarted at the new measurement");
+		Check.near(0.0, estimator.getRate(), 1e-9, "rate restarted");
+
+		/**
+		 * A gap longer than the timeout restarts the filter even without a miss in between
+		 */
+		estimator.update(3.5, captured + 666 * msec, p);
+		estimator.update(-2.0, captured + 1200 * msec, p);
+		Check.near(-2.0, estimator.getAngle(), 1e-9, "angle restarted after a long gap");
+		Check.near(0.0, estimator.getRate(), 1e-9, "rate restarted after a long gap");
+	}
+
+	/**
+	 * The angle sent to the RoboRIO moves on at the filtered rate for the age of the
+	 * frame, but no further than estimator_max_prediction_msec, as in UDPClient.sendUpdate
+	 */
+	public static void testExtrapolationIsLimited() throws Exception {
+		VisionPrefs p = prefs();
+		TargetEstimator estimator = new TargetEstimator();
+		long start = 1000 * msec;
+		long captured = start;
+		for (int frame = 0; frame < 90; frame++) {
+			captured = start + frame * 33 * msec;
+			estimator.update(-10.0 * (captured - start) / 1e9, captured, p);
+		}
+		double angle = estimator.getAngle();
+		double rate = estimator.getRate();
+		Check.near(-10.0, rate, 0.1, "rate in degrees a second");
+
+		long limit = p.getInt("estimator_max_prediction_msec", 200) * msec;
+		Check.equal(200 * msec, limit, "prediction limit of prefs.txt");
+		Check.near(angle, TargetEstimator.extrapolate(angle, rate, 0, limit), 1e-9, "angle of a fresh frame");
+		Check.near(estimator.predict(captured + 50 * msec), TargetEstimator.extrapolate(angle, rate, 50 * msec, limit), 1e-9,
+			"angle of a frame 50 ms old");
+		Check.near(estimator.predict(captured + 200 * msec), TargetEstimator.extrapolate(angle, rate, 2000 * msec, limit), 1e-9,
+			"angle of a frame 2 s old, moved on for 200 ms only");
+		Check.near(angle - 2.0, TargetEstimator.extrapolate(angle, rate, 2000 * msec, limit), 0.02, "limited extrapolation");
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+
+/**
+ * TelemetryPublisher sending to listeners on this machine, each a channel of its
+ * own, as the RoboRIO, a dashboard and a logging laptop would be.
+ */
+public class TelemetryPublisherTest {
+
+	/**
+	 * The multicast group the tests send to, in the range kept for local use
+	 */
+	private static final String group = "239.54.50.1";
+
+	/**
+	 * A listener on its own port of the loopback address
+	 */
+	private static DatagramChannel listener() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	private static InetSocketAddress address(DatagramChannel channel) throws IOException {
+		return (InetSocketAddress)channel.getLocalAddress();
+	}
+
+	/**
+	 * The next datagram the channel receives, as bytes, waiting up to two seconds for it
+	 */
+	private static byte[] receive(DatagramChannel channel) throws IOException, InterruptedException {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		long deadline = System.nanoTime() + 2000000000L;
+		while (channel.receive(buffer) == null) {
+			Check.isTrue(System.nanoTime() - deadline < 0, "datagram received by " + channel.getLocalAddress());
+			Thread.sleep(1);
+		}
+		buffer.flip();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Every datagram waiting on the channel, decoded
+	 */
+	private static List<VisionPacket> drain(DatagramChannel channel) throws IOException {
+		List<VisionPacket> packets = new ArrayList<VisionPacket>();
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		while (channel.receive(buffer) != null) {
+			buffer.flip();
+			VisionPacket packet = new VisionPacket();
+			Check.isTrue(packet.read(buffer), "packet decoded");
+			packets.add(packet);
+			buffer.clear();
+		}
+		return packets;
+	}
+
+	/**
+	 * A packet encoded once into the datagram UDPClient sends, as in UDPClient.sendUpdate
+	 */
+	private static DatagramPacket encode(VisionPacket packet, ByteBuffer buffer) {
+		packet.write(buffer);
+		return new DatagramPacket(buffer.array(), buffer.limit());
+	}
+
+	private static VisionPacket measurement(long sequence) {
+		VisionPacket packet = new VisionPacket();
+		packet.state = UDPClient.VisionState.Gear.ordinal();
+		packet.flags = VisionPacket.FLAG_TARGET_FOUND;
+		packet.sequence = sequence;
+		packet.timestamp = System.nanoTime();
+		packet.angle = 12.5;
+		packet.score = 0.75;
+		packet.rate = -3.0;
+		return packet;
+	}
+
+	/**
+	 * Every subscriber receives the very bytes encoded once for all of them
+	 */
+	public static void testSameEncodedPacketToEverySubscriber() throws Exception {
+		List<DatagramChannel> listeners = new ArrayList<DatagramChannel>();
+		TelemetryPublisher publisher = new TelemetryPublisher();
+		try (DatagramSocket socket = new DatagramSocket()) {
+			for (int i = 0; i < 3; i++) {
+				listeners.add(listener());
+				publisher.add(address(listeners.get(i)), 0.0);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(VisionPacket.SIZE);
+			publisher.publish(socket, encode(measurement(1), buffer));
+
+			byte[] encoded = Arrays.copyOf(buffer.array(), buffer.limit());
+			for (DatagramChannel listener : listeners) {
+				Check.isTrue(Arrays.equals(encoded, receive(listener)), "same bytes received by " + address(listener));
+			}
+			Check.isTrue(publisher.summary().contains("1 sent, 0 rate limited, 0 failed"), "counted in " + publisher.summary());
+		} finally {
+			for (DatagramChannel listener : listeners) {
+				listener.close();
+			}
+		}
+	}
+
+	/**
+	 * A subscriber listed with @rate gets no more than that many packets a second,
+	 * each of them the measurement of the moment, while one without a rate gets them all
+	 */
+	public static void testRateLimitedSubscriber() throws Exception {
+		int published = 100;
+		try (DatagramChannel every = listener(); DatagramChannel limited = listener(); DatagramSocket socket = new DatagramSocket()) {
+			TelemetryPublisher publisher = new TelemetryPublisher();
+			publisher.addAll("127.0.0.1:" + address(every).getPort() + ", 127.0.0.1:" + address(limited).getPort() + "@20");
+
+			ByteBuffer buffer = ByteBuffer.allocate(VisionPacket.SIZE);
+			long start = System.nanoTime();
+			for (int sequence = 1; sequence <= published; sequence++) {
+				publisher.publish(socket, encode(measurement(sequence), buffer));
+				Thread.sleep(5);
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			Thread.sleep(100);
+
+			List<VisionPacket> all = drain(every);
+			List<VisionPacket> some = drain(limited);
+			Check.equal(published, all.size(), "packets received without a rate limit");
+			Check.isTrue(some.size() >= 2 && some.size() <= elapsed * 20 + 1,
+				some.size() + " packets received at 20 a second in " + elapsed + " s");
+
+			/**
+			 * Publishing is at least 5 ms apart, so a newer measurement comes at most
+			 * ten packets after the last one sent at 20 a second
+			 */
+			Check.isTrue(some.get(some.size() - 1).sequence > published - 12,
+				"last packet at 20 a second is " + some.get(some.size() - 1).sequence + " of " + published);
+			Check.isTrue(publisher.summary().contains(":" + address(limited).getPort() + "@20: " + some.size() + " sent, "
+				+ (published - some.size()) + " rate limited"), "counted in " + publisher.summary());
+		}
+	}
+
+	/**
+	 * A multicast group subscriber reaches every listener that joined the group with one send
+	 */
+	public static void testMulticastReachesEveryMember() throws Exception {
+		NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+		InetAddress groupAddress = InetAddress.getByName(group);
+		List<DatagramChannel> members = new ArrayList<DatagramChannel>();
+		try (DatagramSocket socket = new DatagramSocket()) {
+			/**
+			 * The members share the group's port, as listeners on separate machines would
+			 */
+			int port = 0;
+			for (int i = 0; i < 3; i++) {
+				DatagramChannel member = DatagramChannel.open(StandardProtocolFamily.INET);
+				member.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				member.bind(new InetSocketAddress(port));
+				member.join(groupAddress, loopback);
+				member.configureBlocking(false);
+				port = address(member).getPort();
+				members.add(member);
+			}
+			socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+
+			TelemetryPublisher publisher = new TelemetryPublisher();
+			publisher.addAll(group + ":" + port);
+			ByteBuffer buffer = ByteBuffer.allocate(VisionPacket.SIZE);
+			publisher.publish(socket, encode(measurement(7), buffer));
+
+			byte[] encoded = Arrays.copyOf(buffer.array(), buffer.limit());
+			for (DatagramChannel member : members) {
+				Check.isTrue(Arrays.equals(encoded, receive(member)), "group packet received by member " + members.indexOf(member));
+			}
+			Check.isTrue(publisher.summary().contains(group + ":" + port + ": 1 sent"), "one send in " + publisher.summary());
+		} finally {
+			for (DatagramChannel member : members) {
+				member.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+import org.opencv.core.Core;
+
+import java.io.File;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Runs the tests in ./test without a test framework, the same way on the
+ * raspberry pi and on a laptop. A test is a public static method named test*
+ * with no arguments in a class named *Test. It passes if it returns and fails if
+ * it throws, see Check.
+ *
+ * Usage: TestRunner <test classes directory> [class or class.method ...]
+ *
+ * With no names every test is run. Exits with status 1 if any test failed.
+ */
+public class TestRunner {
+	static { System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: TestRunner <test classes directory> [class or class.method ...]");
+			System.exit(2);
+		}
+
+		List<String> names = new ArrayList<String>();
+		String[] files = new File(args[0]).list();
+		for (String file : files != null ? files : new String[0]) {
+			if (file.endsWith("Test.class")) {
+				names.add(file.substring(0, file.length() - ".class".length()));
+			}
+		}
+		Collections.sort(names);
+		Set<String> only = new HashSet<String>(Arrays.asList(args).subList(1, args.length));
+
+		int passed = 0;
+		List<String> failed = new ArrayList<String>();
+		for (String name : names) {
+			Method[] methods = Class.forName(name).getMethods();
+			Arrays.sort(methods, (a, b) -> a.getName().compareTo(b.getName()));
+			for (Method method : methods) {
+				String test = name + "." + method.getName();
+				if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+						|| method.getParameterCount() != 0) {
+					continue;
+				}
+				if (!only.isEmpty() && !only.contains(name) && !only.contains(test)) {
+					continue;
+				}
+
+				long start = System.nanoTime();
+				try {
+					method.invoke(null);
+					passed++;
+					System.out.printf(Locale.ROOT, "PASS %s (%.0f ms)%n", test, (System.nanoTime() - start) / 1e6);
+				} catch (InvocationTargetException e) {
+					failed.add(test);
+					System.out.println("FAIL " + test);
+					e.getCause().printStackTrace(System.out);
+				}
+			}
+		}
+
+		System.out.println(passed + " passed, " + failed.size() + " failed" + (failed.isEmpty() ? "" : ": " + failed));
+		System.exit(failed.isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * UDPServer driven by a stand-in vision client on this machine, at the packet
+ * rates a fast pipeline and a busy network can produce.
+ */
+public class UDPServerTest {
+
+	/**
+	 * A vision client on its own port, sending measurements whose angle and score
+	 * are derived from their sequence number so a torn read can be spotted
+	 */
+	private static class StandInClient implements AutoCloseable {
+		final DatagramChannel channel = DatagramChannel.open();
+		final InetSocketAddress server;
+		final VisionPacket packet = new VisionPacket();
+		final ByteBuffer buffer = ByteBuffer.allocate(VisionPacket.SIZE);
+
+		StandInClient(int port) throws IOException {
+			server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			channel.configureBlocking(false);
+		}
+
+		void send(long sequence) throws IOException {
+			packet.state = UDPClient.VisionState.Gear.ordinal();
+			packet.flags = VisionPacket.FLAG_TARGET_FOUND;
+			packet.sequence = sequence;
+			packet.timestamp = System.nanoTime();
+			packet.angle = sequence % 60;
+			packet.score = (sequence % 60) / 60.0;
+			packet.write(buffer);
+			channel.send(buffer, server);
+			ByteBuffer response = ByteBuffer.allocate(1024);
+			while (channel.receive(response) != null) {
+				response.clear();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private static UDPServer start(int port) {
+		UDPServer server = new UDPServer(port);
+		Thread thread = new Thread(server, "UDP server");
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+
+	private static int freePort() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Packets as fast as the server takes them while a reader polls the snapshot: every
+	 * read is consistent, sequences never go backwards, and the newest packet wins.
+	 * How fast that is depends on the machine and its load, so no rate is asserted.
+	 */
+	public static void testKeepsNewestUnderLoad() throws Exception {
+		int port = freePort();
+		UDPServer server = start(port);
+		AtomicReference<String> torn = new AtomicReference<String>();
+		Thread reader = new Thread(() -> {
+			VisionPacket latest = new VisionPacket();
+			long previous = 0;
+			while (server.getVisionState() != UDPServer.VisionState.Disabled) {
+				server.getLatest(latest);
+				if (latest.sequence > 0 && (latest.angle != latest.sequence % 60 || latest.score != (latest.sequence % 60) / 60.0)) {
+					torn.compareAndSet(null, "packet " + latest.sequence + " read with angle " + latest.angle);
+				}
+				if (latest.sequence < previous) {
+					torn.compareAndSet(null, "sequence went back from " + previous + " to " + latest.sequence);
+				}
+				previous = latest.sequence;
+				Thread.onSpinWait();
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		try (StandInClient client = new StandInClient(port)) {
+			Check.eventually(2000, server::isConnected, "server bound");
+			int count = 5000;
+			for (int i = 1; i <= count; i++) {
+				client.send(i);
+				if (i % 50 == 0) {
+					/**
+					 * In batches the socket's receive buffer holds, so none are dropped
+					 * while the server waits for a core
+					 */
+					long sent = i;
+					Check.eventually(2000, () -> server.getReceivedCount() == sent, "packets up to " + i);
+				}
+			}
+
+			Check.eventually(2000, () -> server.getSequence() == count, "newest packet kept");
+			Check.equal(0, server.getStaleCount(), "stale packets in order on loopback");
+			Check.equal(null, torn.get(), "torn read");
+			Check.isTrue(server.isTargetFound(), "target found");
+			Check.near(count % 60, server.getAngle(), 0.0, "angle of the newest packet");
+		} finally {
+			server.setVisionState(UDPServer.VisionState.Disabled);
+		}
+	}
+
+	public static void testDropsReorderedPacket() throws Exception {
+		int port = freePort();
+		UDPServer server = start(port);
+		try (StandInClient client = new StandInClient(port)) {
+			Check.eventually(2000, server::isConnected, "server bound");
+			client.send(10);
+			Check.eventually(2000, () -> server.getSequence() == 10, "first packet");
+			client.send(5);
+			Check.eventually(2000, () -> server.getStaleCount() == 1, "older packet counted as stale");
+			Check.equal(10, server.getSequence(), "sequence");
+		} finally {
+			server.setVisionState(UDPServer.VisionState.Disabled);
+		}
+	}
+
+	/**
+	 * A restarted client sends from a new port with its sequence started over, and is
+	 * accepted right away however far the old sequence had got
+	 */
+	public static void testAcceptsRestartedClient() throws Exception {
+		int port = freePort();
+		UDPServer server = start(port);
+		try {
+			try (StandInClient before = new StandInClient(port)) {
+				Check.eventually(2000, server::isConnected, "server bound");
+				/**
+				 * In batches the socket's receive buffer holds, so none are dropped
+				 * while the server waits for a core
+				 */
+				for (int i = 1; i <= 500; i++) {
+					before.send(i);
+					if (i % 50 == 0) {
+						long sent = i;
+						Check.eventually(2000, () -> server.getReceivedCount() == sent, "first client's packets up to " + i);
+					}
+				}
+				Check.eventually(2000, () -> server.getSequence() == 500, "first client's packets");
+			}
+			try (StandInClient after = new StandInClient(port)) {
+				after.send(1);
+				Check.eventually(2000, () -> server.getSequence() == 1, "restarted client's first packet");
+				after.send(2);
+				Check.eventually(2000, () -> server.getSequence() == 2, "restarted client's second packet");
+			}
+		} finally {
+			server.setVisionState(UDPServer.VisionState.Disabled);
+		}
+	}
+
+	/**
+	 * A client that pauses for longer than the timeout may start over on the same port
+	 */
+	public static void testAcceptsSequenceRestartAfterPause() throws Exception {
+		int port = freePort();
+		UDPServer server = start(port);
+		try (StandInClient client = new StandInClient(port)) {
+			Check.eventually(2000, server::isConnected, "server bound");
+			client.send(100);
+			Check.eventually(2000, () -> server.getSequence() == 100, "first packet");
+			Thread.sleep(700);
+			client.send(1);
+			Check.eventually(2000, () -> server.getSequence() == 1, "packet after the pause");
+		} finally {
+			server.setVisionState(UDPServer.VisionState.Disabled);
+		}
+	}
+
+	/**
+	 * The server answers the sender with the vision state it wants
+	 */
+	public static void testRespondsWithVisionState() throws Exception {
+		int port = freePort();
+		UDPServer server = start(port);
+		try (StandInClient client = new StandInClient(port)) {
+			Check.eventually(2000, server::isConnected, "server bound");
+			server.setVisionState(UDPServer.VisionState.Boiler);
+			client.packet.state = 0;
+			client.packet.sequence = 1;
+			client.packet.write(client.buffer);
+			client.channel.configureBlocking(true);
+			client.channel.send(client.buffer, client.server);
+			ByteBuffer response = ByteBuffer.allocate(1024);
+			client.channel.receive(response);
+			response.flip();
+			VisionPacket answer = new VisionPacket();
+			Check.isTrue(answer.read(response), "well formed response");
+			Check.equal(UDPServer.VisionState.Boiler.ordinal(), answer.state, "state in response");
+		} finally {
+			server.setVisionState(UDPServer.VisionState.Disabled);
+		}
+	}
+}
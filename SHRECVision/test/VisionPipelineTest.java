@@ -0,0 +1,49 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+
+/**
+ * The contours detector keeps the two largest well filled blobs whatever order
+ * they are found in, including a blob that is larger than the second one kept so
+ * far but fills less of its box.
+ */
+public class VisionPipelineTest {
+
+	public static void testSelectsTwoLargestInAnyOrder() throws Exception {
+		VisionPrefs p = ColorLutTest.prefs().with("roi_enabled", "false");
+		VisionPipeline pipeline = new VisionPipeline(UDPClient.VisionState.Gear, new VisionStats(0).pipeline("Gear"));
+		Mat mask = pipeline.getMask();
+
+		/**
+		 * Two ellipses, which fill less of their boxes than the rectangle between them in size
+		 */
+		Size[] sizes = {new Size(30, 20), new Size(26, 18), new Size(14, 10)};
+		boolean[] ellipse = {true, true, false};
+		int[][] orders = {{0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}};
+		for (int[] order : orders) {
+			mask.create(240, 320, CvType.CV_8UC1);
+			mask.setTo(new Scalar(0));
+			for (int slot = 0; slot < order.length; slot++) {
+				int blob = order[slot];
+				Point center = new Point(50 + 100 * slot, 60 + 60 * slot);
+				if (ellipse[blob]) {
+					Imgproc.ellipse(mask, center, sizes[blob], 0, 0, 360, new Scalar(255), Imgproc.FILLED);
+				} else {
+					Imgproc.rectangle(mask, new Point(center.x - sizes[blob].width, center.y - sizes[blob].height),
+						new Point(center.x + sizes[blob].width, center.y + sizes[blob].height), new Scalar(255), Imgproc.FILLED);
+				}
+			}
+
+			Check.equal(3, pipeline.findContours(), "contours");
+			Check.isTrue(pipeline.select(p), "found");
+			VisionWorkspace ws = pipeline.getWorkspace();
+			double smaller = Math.min(ws.getArea(pipeline.getIndex1()), ws.getArea(pipeline.getIndex2()));
+			for (int i = 0; i < 3; i++) {
+				if (i != pipeline.getIndex1() && i != pipeline.getIndex2()) {
+					Check.isTrue(ws.getArea(i) < smaller, "blob left out is smaller than both kept, in order "
+						+ order[0] + order[1] + order[2]);
+				}
+			}
+		}
+		pipeline.release();
+	}
+}
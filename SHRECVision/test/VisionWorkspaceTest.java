@@ -0,0 +1,54 @@
+import org.opencv.core.*;
+
+import java.util.Random;
+
+/**
+ * The mask of a VisionWorkspace stays clear outside the region being processed as
+ * the region moves, grows, shrinks and goes away, while only what the previous
+ * region left behind is cleared.
+ */
+public class VisionWorkspaceTest {
+
+	public static void testMaskClearOutsideMovingRegion() {
+		VisionWorkspace ws = new VisionWorkspace();
+		Mat expected = new Mat();
+		Mat difference = new Mat();
+		Random random = new Random(5450);
+		int rows = 240, cols = 320;
+		for (int i = 0; i < 2000; i++) {
+			if (i == 1000) {
+				/**
+				 * A new frame size starts over with a new mask
+				 */
+				rows = 120;
+				cols = 160;
+			}
+			Rect region = null;
+			if (random.nextInt(8) != 0) {
+				int x = random.nextInt(cols), y = random.nextInt(rows);
+				region = new Rect(x, y, 1 + random.nextInt(cols - x), 1 + random.nextInt(rows - y));
+			}
+			ws.setRegion(region);
+			ws.prepareMask(rows, cols);
+
+			/**
+			 * What a stage writes into the region
+			 */
+			ws.view(ws.mask).setTo(new Scalar(255));
+
+			expected.create(rows, cols, CvType.CV_8UC1);
+			expected.setTo(new Scalar(region == null ? 255 : 0));
+			if (region != null) {
+				expected.submat(region).setTo(new Scalar(255));
+			}
+			Core.absdiff(ws.mask, expected, difference);
+			Check.equal(0, Core.countNonZero(difference), "pixels wrong in frame " + i + " with region " + region);
+		}
+		ws.clearMask(rows, cols);
+		Check.equal(0, Core.countNonZero(ws.mask), "pixels set after clearMask");
+		ws.setRegion(new Rect(10, 10, 20, 20));
+		ws.prepareMask(rows, cols);
+		Check.equal(0, Core.countNonZero(ws.mask), "pixels set in a region after clearMask");
+		ws.release();
+	}
+}